@@ -0,0 +1,83 @@
+package org.swib.blockchain.benchmark;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.swib.blockchain.Block;
+import org.swib.blockchain.BlockTemplate;
+import org.swib.blockchain.Coin;
+import org.swib.blockchain.Common;
+import org.swib.blockchain.DigitalSign;
+import org.swib.blockchain.Hash;
+import org.swib.blockchain.Key;
+import org.swib.blockchain.Miner;
+import org.swib.blockchain.ProofOfWork;
+import org.swib.blockchain.TransactionOperator;
+
+/**
+ * ベンチマーク用の正しいブロックチェーン<br>
+ * 各ブロックには報酬のほかに、前のブロックの報酬のコインを別の人に送るトランザクションが入っている。
+ * 採掘には時間がかかるので、一度作ったチェーンは一時ディレクトリに保存して次からはそれを読む。
+ * タイムスタンプは過去の時刻から目標の間隔ごとに付けるので、難易度は最初のまま変わらない
+ */
+public class Chains {
+
+    /**
+     * ブロックチェーンのバイナリ(Common.serialize)
+     *
+     * @param n ブロック数
+     * @return List&lt;Block&gt;をシリアライズしたもの
+     */
+    public static synchronized byte[] load(int n) {
+        File file = new File(System.getProperty("java.io.tmpdir"), "swibcoin-chain-" + n + ".bin");
+        try {
+            if (file.exists()) {
+                byte[] data = Files.readAllBytes(file.toPath());
+                if (Common.deserialize(data) != null) {
+                    return data;
+                }
+            }
+            byte[] data = Common.serialize(create(n));
+            Files.write(file.toPath(), data);
+            return data;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * ブロックチェーンを読み込む。毎回新しいオブジェクトを返す(ハッシュが覚えられていない状態)
+     *
+     * @param n ブロック数
+     * @return ブロックチェーン
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Block> decode(int n) {
+        return (List<Block>) Common.deserialize(load(n));
+    }
+
+    private static List<Block> create(int n) {
+        Key[] miner = DigitalSign.generateKey();
+        Key[] other = DigitalSign.generateKey();
+        Miner m = new Miner(Runtime.getRuntime().availableProcessors());
+        List<Block> chain = new ArrayList<>();
+        Hash prevHash = null;
+        Coin reward = null;
+        long start = System.currentTimeMillis() - n * ProofOfWork.TARGET_INTERVAL;
+        for (int i = 0; i < n; i++) {
+            BlockTemplate template = new BlockTemplate(prevHash, new Coin(miner[0]), ProofOfWork.INITIAL_DIFFICULTY);
+            template.timestamp = start + i * ProofOfWork.TARGET_INTERVAL;
+            if (reward != null) {
+                template.coins.add(TransactionOperator.send(reward, miner[1], other[0]));
+            }
+            m.find(template, -1);
+            Block block = template.toBlock();
+            chain.add(block);
+            prevHash = block.getHash();
+            reward = block.coins.get(0);
+        }
+        return chain;
+    }
+}
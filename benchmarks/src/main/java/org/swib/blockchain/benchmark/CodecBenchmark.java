@@ -0,0 +1,62 @@
+package org.swib.blockchain.benchmark;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swib.blockchain.Block;
+import org.swib.blockchain.BlockTemplate;
+import org.swib.blockchain.Coin;
+import org.swib.blockchain.Common;
+import org.swib.blockchain.DigitalSign;
+import org.swib.blockchain.Key;
+import org.swib.blockchain.ProofOfWork;
+import org.swib.blockchain.TransactionOperator;
+
+/**
+ * Common.serialize, deserialize, hash(コインを100個含むブロック)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private Block block;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        Key[] sender = DigitalSign.generateKey();
+        Key[] receiver = DigitalSign.generateKey();
+        BlockTemplate template = new BlockTemplate(null, new Coin(sender[0]), ProofOfWork.INITIAL_DIFFICULTY);
+        for (int i = 0; i < 99; i++) {
+            template.coins.add(TransactionOperator.send(new Coin(sender[0]), sender[1], receiver[0]));
+        }
+        block = template.toBlock();
+        data = Common.serialize(block);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return Common.serialize(block);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return Common.deserialize(data);
+    }
+
+    @Benchmark
+    public byte[] hash() {
+        return Common.hash(block);
+    }
+}
@@ -0,0 +1,48 @@
+package org.swib.blockchain.benchmark;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swib.blockchain.BlockTemplate;
+import org.swib.blockchain.Coin;
+import org.swib.blockchain.DigitalSign;
+import org.swib.blockchain.ProofOfWork;
+
+/**
+ * ProofOfWork.findのハッシュレート(1スレッド)。結果は1秒あたりの試行回数<br>
+ * 1回の呼び出しでTRIAL回試行する。途中で見つかった場合はそこで終わるので、ハッシュレートは少しだけ小さく出る
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MiningBenchmark {
+    private static final int TRIAL = 1000;
+
+    private BlockTemplate template;
+
+    @Setup
+    public void setup() {
+        template = new BlockTemplate(DigitalSign.hash("prev"), new Coin(DigitalSign.generateKey()[0]),
+                ProofOfWork.INITIAL_DIFFICULTY);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRIAL)
+    public boolean find() {
+        // 前の呼び出しで見つかったNonceから始めるとすぐに終わってしまうので消しておく
+        template.nonce = null;
+        return ProofOfWork.find(template, TRIAL);
+    }
+}
@@ -0,0 +1,49 @@
+package org.swib.blockchain.benchmark;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swib.blockchain.Coin;
+import org.swib.blockchain.DigitalSign;
+import org.swib.blockchain.Key;
+import org.swib.blockchain.Signature;
+
+/**
+ * DigitalSign.sign, validate(トランザクション1つ)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignBenchmark {
+    private Key[] keys;
+    private Coin.Transaction tx;
+    private Signature sign;
+
+    @Setup
+    public void setup() {
+        keys = DigitalSign.generateKey();
+        tx = new Coin.Transaction(DigitalSign.hash(new Coin(keys[0])), DigitalSign.generateKey()[0]);
+        sign = DigitalSign.sign(tx, keys[1]);
+    }
+
+    @Benchmark
+    public Signature sign() {
+        return DigitalSign.sign(tx, keys[1]);
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return DigitalSign.validate(tx, sign, keys[0]);
+    }
+}
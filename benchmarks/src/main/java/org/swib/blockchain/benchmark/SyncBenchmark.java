@@ -0,0 +1,68 @@
+package org.swib.blockchain.benchmark;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swib.blockchain.Inbox;
+import org.swib.blockchain.Node;
+
+/**
+ * Node.syncBlock(空のノードがチェーン全体を受け取り、デシリアライズ、検証、反映が終わるまで)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncBenchmark {
+    @Param({ "100", "1000" })
+    public int blocks;
+
+    private byte[] data;
+    private Node node;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        data = Chains.load(blocks);
+        // ノードのログは捨てる
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // None
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void restore() {
+        System.setOut(out);
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        node = new Node("bench", 1);
+    }
+
+    @Benchmark
+    public int syncBlock() {
+        node.syncBlock(data, null);
+        Inbox.awaitIdle();
+        return node.getHeight();
+    }
+}
@@ -0,0 +1,70 @@
+package org.swib.blockchain.benchmark;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swib.blockchain.Block;
+import org.swib.blockchain.ChainState;
+import org.swib.blockchain.ProofOfWork;
+import org.swib.blockchain.TransactionOperator;
+
+/**
+ * ProofOfWork.validate<br>
+ * full: チェーン全体の検証、append: 最後の1ブロックだけを残りのチェーンの状態に対して検証。
+ * ハッシュが覚えられていない状態で測るため、呼び出しごとにチェーンをデシリアライズし直す。
+ * signatureCacheがfalseなら呼び出しごとに検証済みの署名の記録を消す(初めて受け取ったチェーン)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidateBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int blocks;
+
+    @Param({ "true", "false" })
+    public boolean signatureCache;
+
+    private List<Block> chain;
+    private ChainState state;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        Chains.load(blocks);
+        state = new ChainState();
+        for (Block block : Chains.decode(blocks).subList(0, blocks - 1)) {
+            state.apply(block, block.getHash());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        chain = Chains.decode(blocks);
+        if (!signatureCache) {
+            TransactionOperator.getSignatureCache().clear();
+        }
+    }
+
+    @Benchmark
+    public int full() {
+        return ProofOfWork.validate(chain);
+    }
+
+    @Benchmark
+    public int append() {
+        return ProofOfWork.validate(chain.subList(blocks - 1, blocks), state);
+    }
+}
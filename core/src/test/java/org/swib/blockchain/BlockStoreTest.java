@@ -0,0 +1,174 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * BlockStoreとSnapshotStoreのテスト。途中で切れたファイルや壊れたブロック、古いスナップショットから立ち直れることを確かめる
+ */
+public class BlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void truncatedDataSegment() throws Exception {
+        File dir = folder.newFolder();
+        List<Block> blocks = write(dir, 3);
+        // 3つ目のブロックの途中で切れたことにする
+        truncate(new File(dir, "blocks00000.dat"), offsetOf(dir, 2) + 10);
+        try (BlockStore store = new BlockStore(dir, 1)) {
+            assertEquals(2, store.size());
+            assertEquals(blocks.get(1).getHash(), store.get(1).getHash());
+            // 捨てた分の後ろにまた書ける
+            store.add(blocks.get(2));
+        }
+        try (BlockStore store = new BlockStore(dir, 1)) {
+            assertEquals(3, store.size());
+            assertEquals(blocks.get(2).getHash(), store.get(2).getHash());
+        }
+    }
+
+    @Test
+    public void truncatedIndex() throws Exception {
+        File dir = folder.newFolder();
+        List<Block> blocks = write(dir, 3);
+        long end = offsetOf(dir, 1);
+        File index = new File(dir, "blocks.idx");
+        truncate(index, index.length() / 3 * 2 - 5);
+        try (BlockStore store = new BlockStore(dir, 1)) {
+            assertEquals(1, store.size());
+            assertEquals(blocks.get(0).getHash(), store.get(0).getHash());
+            // 索引に無いデータも捨てられている
+            assertEquals(end, new File(dir, "blocks00000.dat").length());
+            store.add(blocks.get(1));
+            assertEquals(blocks.get(1).getHash(), store.get(1).getHash());
+        }
+    }
+
+    @Test
+    public void corruptBlockIsNull() throws Exception {
+        File dir = folder.newFolder();
+        List<Block> blocks = write(dir, 3);
+        corrupt(dir, 1);
+        try (BlockStore store = new BlockStore(dir, 1)) {
+            assertEquals(3, store.size());
+            assertEquals(blocks.get(0).getHash(), store.get(0).getHash());
+            assertNull(store.get(1));
+            assertEquals(blocks.get(2).getHash(), store.get(2).getHash());
+        }
+    }
+
+    @Test
+    public void corruptBlockLoadedWithoutSnapshotIsDropped() throws Exception {
+        File dir = folder.newFolder();
+        Node node = new Node("a", 1, dir);
+        ProofOfWorkTest.mine(node, 3);
+        node.close();
+        corrupt(dir, 1);
+        node = new Node("a", 1, dir);
+        assertEquals(1, node.getHeight());
+        node.close();
+    }
+
+    @Test
+    public void corruptBlockBeforeSnapshotIsNotReturned() throws Exception {
+        File dir = folder.newFolder();
+        Node node = new Node("a", 1, dir);
+        List<Block> blocks = ProofOfWorkTest.mine(node, 3);
+        node.close();
+        new SnapshotStore(dir, 2).save(3, stateOf(blocks).snapshot());
+        corrupt(dir, 1);
+
+        // スナップショットより前のブロックは読み込み時に読まないので、問い合わせを受けた時に読めない手前で止める
+        node = new Node("a", 1, dir);
+        assertEquals(3, node.getHeight());
+        byte[] locator = Common.serialize(Collections.emptyList());
+        assertEquals(1, ((List<?>) Common.deserialize(node.requestBlocks(locator).get())).size());
+        assertEquals(1, ((List<?>) Common.deserialize(node.requestHeaders(locator).get())).size());
+        node.close();
+    }
+
+    @Test
+    public void staleSnapshotIgnoredAfterReorg() throws Exception {
+        File dir = folder.newFolder();
+        Node a = new Node("a", 1, dir);
+        Node b = new Node("b");
+        a.mining();
+        Inbox.awaitIdle();
+        b.syncBlock(a.requestBlocks(Common.serialize(Collections.emptyList())).get(), a);
+        Inbox.awaitIdle();
+        a.mining();
+        new SnapshotStore(dir, 2).save(2, stateOf(ProofOfWorkTest.mine(a, 0)).snapshot());
+
+        // bの仕事量の多い枝に入れ替わると、高さ2のスナップショットは今のチェーンに合わなくなる
+        List<Block> chain = ProofOfWorkTest.mine(b, 2);
+        a.announceBlock(3, Common.serialize(chain.get(2)), b);
+        Inbox.awaitIdle();
+        assertEquals(1, a.getMetrics().getReorgs());
+        assertEquals(1, a.getWallet());
+        a.close();
+
+        a = new Node("a", 1, dir);
+        assertEquals(3, a.getHeight());
+        assertEquals(1, a.getWallet());
+        a.close();
+    }
+
+    private static List<Block> write(File dir, int count) throws Exception {
+        List<Block> blocks = ProofOfWorkTest.mine(new Node("a"), count);
+        try (BlockStore store = new BlockStore(dir, 1)) {
+            store.addAll(blocks);
+        }
+        return blocks;
+    }
+
+    private static ChainState stateOf(List<Block> blocks) {
+        ChainState state = new ChainState();
+        for (Block block : blocks) {
+            state.apply(block, block.getHash());
+        }
+        return state;
+    }
+
+    /**
+     * 索引からブロックのセグメント内の位置を読む(セグメントは1つだけ)
+     */
+    private static long offsetOf(File dir, int height) throws IOException {
+        try (RandomAccessFile index = new RandomAccessFile(new File(dir, "blocks.idx"), "r")) {
+            index.seek((long) height * (4 + 4 + BlockHeader.HASH_LEN) + 4);
+            return index.readInt();
+        }
+    }
+
+    /**
+     * ブロックの中身(長さの後)を書き換える
+     */
+    private static void corrupt(File dir, int height) throws IOException {
+        long offset = offsetOf(dir, height);
+        try (RandomAccessFile data = new RandomAccessFile(new File(dir, "blocks00000.dat"), "rw")) {
+            data.seek(offset);
+            int len = data.readInt();
+            for (int i = len / 2; i < len / 2 + 8; i++) {
+                data.seek(offset + 4 + i);
+                int b = data.read();
+                data.seek(offset + 4 + i);
+                data.write(b ^ 0xff);
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
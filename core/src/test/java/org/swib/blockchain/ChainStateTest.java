@@ -0,0 +1,202 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * ChainStateのテスト。スナップショットから同じ状態に戻ることを確かめる
+ */
+public class ChainStateTest {
+    private static List<Block> blocks;
+    private static Key owner;
+
+    @BeforeClass
+    public static void mine() throws Exception {
+        Node node = new Node("state");
+        Node other = new Node("other");
+        node.mining();
+        node.mining();
+        Inbox.awaitIdle();
+        node.send(other.getPublicKey());
+        node.mining();
+        Inbox.awaitIdle();
+        owner = node.getPublicKey();
+        @SuppressWarnings("unchecked")
+        List<Block> list = (List<Block>) Common.deserialize(
+                node.requestBlocks(Common.serialize(Collections.emptyList())).get());
+        blocks = list;
+    }
+
+    @Test
+    public void snapshotAndRestore() {
+        ChainState state = apply(blocks);
+        ChainState restored = new ChainState();
+        assertTrue(restored.restore(state.snapshot()));
+        assertEquals(state.getHeight(), restored.getHeight());
+        assertEquals(state.getTipHash(), restored.getTipHash());
+        assertEquals(state.getDifficulty(), restored.getDifficulty());
+        assertEquals(state.getTimestamp(), restored.getTimestamp());
+        assertEquals(state.getWindowStart(), restored.getWindowStart());
+        assertEquals(state.getOwners(), restored.getOwners());
+        assertEquals(state.getBalance(owner), restored.getBalance(owner));
+        for (Key key : state.getOwners()) {
+            for (Coin coin : state.getCoins(key)) {
+                assertTrue(restored.isMined(coin.id));
+                assertEquals(coin.getHash(), restored.getLatest(coin.id).getHash());
+                assertEquals(state.getConfirmedHeight(coin.id), restored.getConfirmedHeight(coin.id));
+            }
+        }
+        assertArrayEquals(state.snapshot(), restored.snapshot());
+        assertEquals(0, restored.getUndoDepth());
+    }
+
+    @Test
+    public void emptyChain() {
+        ChainState restored = new ChainState();
+        assertTrue(restored.restore(new ChainState().snapshot()));
+        assertEquals(0, restored.getHeight());
+        assertNull(restored.getTipHash());
+    }
+
+    @Test
+    public void brokenSnapshot() {
+        byte[] data = apply(blocks).snapshot();
+        data[data.length - 1] ^= 1;
+        ChainState restored = new ChainState();
+        assertFalse(restored.restore(data));
+        assertEquals(0, restored.getHeight());
+        assertFalse(restored.restore(new byte[3]));
+    }
+
+    @Test
+    public void undoDepthIsBounded() {
+        ChainState state = new ChainState(2);
+        for (Block block : blocks) {
+            state.apply(block, block.getHash());
+        }
+        assertEquals(blocks.size(), state.getHeight());
+        assertEquals(Math.min(2, blocks.size()), state.getUndoDepth());
+        state.rollback();
+        assertEquals(blocks.size() - 1, state.getHeight());
+        assertEquals(blocks.get(blocks.size() - 2).getHash(), state.getTipHash());
+    }
+
+    @Test
+    public void incrementalMatchesFullValidation() {
+        Key key = DigitalSign.generateKey()[0];
+        long start = System.currentTimeMillis() - 60 * 1000;
+        // 難易度の見直しの区間をまたぐ長さのチェーン
+        List<Block> chain = new ArrayList<>();
+        ChainState built = new ChainState();
+        for (int i = 0; i < ProofOfWork.RETARGET_WINDOW + 3; i++) {
+            Block block = next(built, key, start + i * ProofOfWork.TARGET_INTERVAL, 0);
+            chain.add(block);
+            built.apply(block, block.getHash());
+        }
+        assertEquals(0, ProofOfWork.validate(chain));
+        Coin spent = blocks.get(2).coins.get(1);
+        int maxUndo = 5;
+        for (int height = 0; height <= chain.size(); height++) {
+            ChainState prefix = apply(chain.subList(0, height));
+            long prev = height == 0 ? start : chain.get(height - 1).timestamp;
+            long now = System.currentTimeMillis();
+            List<Block> variants = new ArrayList<>();
+            variants.add(next(prefix, key, prev + ProofOfWork.TARGET_INTERVAL, 0)); // 0.OK
+            variants.add(next(prefix, key, prev + ProofOfWork.TARGET_INTERVAL, 1)); // 8.NG
+            variants.add(next(prefix, key, now + ProofOfWork.MAX_FUTURE + 60 * 1000, 0)); // 9.NG
+            if (height > 0) {
+                variants.add(next(prefix, key, prev - 1, 0)); // 9.NG
+            }
+            Block wrongId = next(prefix, key, prev + ProofOfWork.TARGET_INTERVAL, 0);
+            variants.add(new Block(wrongId.prevHash, CoinId.random(), wrongId.nonce, wrongId.timestamp,
+                    wrongId.difficulty, wrongId.coins)); // 3.NG
+            for (Block variant : variants) {
+                List<Block> full = new ArrayList<>(chain.subList(0, height));
+                full.add(variant);
+                int expected = ProofOfWork.validate(full);
+                List<Block> added = Collections.singletonList(variant);
+                assertEquals("height " + height, expected, ProofOfWork.validate(added, prefix));
+                // 先端から巻き戻した状態でも同じ(巻き戻しの情報がmaxUndo個しか無ければそれより深くは戻せない)
+                ChainState rolled = new ChainState(maxUndo);
+                for (Block block : chain) {
+                    rolled.apply(block, block.getHash());
+                }
+                int depth = chain.size() - height;
+                assertEquals(Math.min(maxUndo, chain.size()), rolled.getUndoDepth());
+                if (depth <= rolled.getUndoDepth()) {
+                    for (int i = 0; i < depth; i++) {
+                        rolled.rollback();
+                    }
+                    assertSameState(prefix, rolled, chain);
+                    assertEquals("height " + height, expected, ProofOfWork.validate(added, rolled));
+                }
+            }
+            Set<Integer> verdicts = new HashSet<>();
+            for (Block variant : variants) {
+                verdicts.add(ProofOfWork.validate(Collections.singletonList(variant), prefix));
+            }
+            assertEquals(new HashSet<>(Arrays.asList(0, 3, 8, 9)), verdicts);
+        }
+        // 既にブロックに入っているトランザクションをもう一度入れる(二重使用)
+        ChainState state = apply(blocks);
+        Block last = blocks.get(blocks.size() - 1);
+        BlockTemplate template = new BlockTemplate(last.getHash(), new Coin(key), state.getNextDifficulty());
+        template.timestamp = Math.max(last.timestamp, System.currentTimeMillis());
+        template.coins.add(spent);
+        ProofOfWork.find(template, -1);
+        List<Block> full = new ArrayList<>(blocks);
+        full.add(template.toBlock());
+        assertEquals(4, ProofOfWork.validate(full));
+        assertEquals(4, ProofOfWork.validate(Collections.singletonList(template.toBlock()), state));
+    }
+
+    /**
+     * 2つの状態が同じか(スナップショットのバイト列はHashSetの順序が違うことがあるので、値で比べる)
+     */
+    private static void assertSameState(ChainState expected, ChainState actual, List<Block> chain) {
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getTipHash(), actual.getTipHash());
+        assertEquals(expected.getDifficulty(), actual.getDifficulty());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getWindowStart(), actual.getWindowStart());
+        assertEquals(expected.getOwners(), actual.getOwners());
+        for (Block block : chain) {
+            assertEquals(expected.isMined(block.coinId), actual.isMined(block.coinId));
+            assertEquals(expected.getLatest(block.coinId), actual.getLatest(block.coinId));
+            assertEquals(expected.getConfirmedHeight(block.coinId), actual.getConfirmedHeight(block.coinId));
+        }
+    }
+
+    /**
+     * stateの続きのブロックを採掘する
+     *
+     * @param delta 正しい難易度からの差
+     */
+    private static Block next(ChainState state, Key key, long timestamp, int delta) {
+        BlockTemplate template = new BlockTemplate(state.getTipHash(), new Coin(key),
+                state.getNextDifficulty() + delta);
+        template.timestamp = timestamp;
+        ProofOfWork.find(template, -1);
+        return template.toBlock();
+    }
+
+    private static ChainState apply(List<Block> blocks) {
+        ChainState state = new ChainState();
+        for (Block block : new ArrayList<>(blocks)) {
+            state.apply(block, block.getHash());
+        }
+        return state;
+    }
+}
@@ -0,0 +1,233 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Codecのテスト。全ての型が元に戻ること、壊れたバイナリはnullになることを確かめる
+ */
+public class CodecTest {
+    private final Random random = new Random(1);
+
+    @Test
+    public void roundTripTransaction() {
+        Coin.Transaction tx = new Coin.Transaction(hash(), key());
+        Coin.Transaction decoded = (Coin.Transaction) roundTrip(tx);
+        assertEquals(tx.prevHash, decoded.prevHash);
+        assertEquals(tx.receiverPublicKey, decoded.receiverPublicKey);
+
+        Coin.Transaction empty = (Coin.Transaction) roundTrip(new Coin.Transaction(null, key()));
+        assertNull(empty.prevHash);
+    }
+
+    @Test
+    public void roundTripCoin() {
+        Coin coin = coin();
+        Coin decoded = (Coin) roundTrip(coin);
+        assertEquals(coin.id, decoded.id);
+        assertEquals(coin.senderSign, decoded.senderSign);
+        assertEquals(coin.getHash(), decoded.getHash());
+
+        Coin mined = (Coin) roundTrip(new Coin(new CoinId(bytes(CoinId.LENGTH)), new Coin.Transaction(null, key()),
+                null));
+        assertNull(mined.senderSign);
+    }
+
+    @Test
+    public void roundTripBlock() {
+        Block block = block(hash(), 3);
+        Block decoded = (Block) roundTrip(block);
+        assertEquals(block.getHash(), decoded.getHash());
+        assertEquals(block.timestamp, decoded.timestamp);
+        assertEquals(block.difficulty, decoded.difficulty);
+        assertEquals(3, decoded.coins.size());
+
+        Block genesis = (Block) roundTrip(block(null, 0));
+        assertNull(genesis.prevHash);
+        assertTrue(genesis.coins.isEmpty());
+    }
+
+    @Test
+    public void roundTripHeader() {
+        BlockHeader header = block(hash(), 2).getHeader();
+        BlockHeader decoded = (BlockHeader) roundTrip(header);
+        assertEquals(header.hash(), decoded.hash());
+        assertArrayEquals(header.toBytes(), decoded.toBytes());
+    }
+
+    @Test
+    public void roundTripString() {
+        assertEquals("", roundTrip(""));
+        assertEquals("127.0.0.1:8333", roundTrip("127.0.0.1:8333"));
+        assertEquals("日本語", roundTrip("日本語"));
+    }
+
+    @Test
+    public void roundTripNumbers() {
+        assertEquals(0, roundTrip(0));
+        assertEquals(-1, roundTrip(-1));
+        assertEquals(Integer.MAX_VALUE, roundTrip(Integer.MAX_VALUE));
+        assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+        assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+        assertEquals(Long.MIN_VALUE, roundTrip(Long.MIN_VALUE));
+        // intとlongは区別される
+        assertEquals(Long.valueOf(1), roundTrip(1L));
+        assertEquals(Integer.valueOf(1), roundTrip(1));
+    }
+
+    @Test
+    public void roundTripFixedBytes() {
+        List<FixedBytes> values = Arrays.asList(hash(), key(), new CoinId(bytes(CoinId.LENGTH)),
+                new Nonce(bytes(Nonce.LENGTH)), new Signature(bytes(Signature.LENGTH)));
+        for (FixedBytes value : values) {
+            Object decoded = roundTrip(value);
+            assertEquals(value.getClass(), decoded.getClass());
+            assertEquals(value, decoded);
+        }
+    }
+
+    @Test
+    public void roundTripList() {
+        List<Object> list = new ArrayList<>();
+        list.add(coin());
+        list.add("a");
+        list.add(Arrays.asList(hash(), Collections.emptyList()));
+        List<?> decoded = (List<?>) roundTrip(list);
+        assertEquals(3, decoded.size());
+        assertEquals("a", decoded.get(1));
+        assertTrue(((List<?>) ((List<?>) decoded.get(2)).get(1)).isEmpty());
+        assertArrayEquals(Codec.encode(list), Codec.encode(decoded));
+    }
+
+    @Test
+    public void sizeOfMatchesEncode() {
+        Object[] values = { coin(), block(hash(), 2), block(hash(), 2).getHeader(), "abc", 1, 2L, hash(),
+                Arrays.asList(coin(), "x", 3) };
+        for (Object value : values) {
+            assertEquals(1 + Codec.sizeOf(value), Codec.encode(value).length);
+        }
+    }
+
+    @Test
+    public void scanAndDecodeBlocks() {
+        List<Block> blocks = Arrays.asList(block(null, 0), block(hash(), 1), block(hash(), 4));
+        byte[] input = Codec.encode(blocks);
+        List<BlockSummary> summaries = Codec.scanBlocks(input);
+        assertEquals(blocks.size(), summaries.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            BlockSummary summary = summaries.get(i);
+            assertEquals(block.prevHash, summary.prevHash);
+            assertEquals(block.timestamp, summary.timestamp);
+            assertEquals(block.difficulty, summary.difficulty);
+            assertEquals(block.getHash(), Codec.decodeBlock(input, summary).getHash());
+        }
+    }
+
+    @Test
+    public void truncatedInput() {
+        byte[] input = Codec.encode(Arrays.asList(block(hash(), 2), "abc", 7, 8L, coin()));
+        for (int len = 0; len < input.length; len++) {
+            assertNull("length " + len, Codec.decode(Arrays.copyOf(input, len)));
+        }
+        byte[] blocks = Codec.encode(Arrays.asList(block(hash(), 2), block(hash(), 1)));
+        for (int len = 0; len < blocks.length; len++) {
+            assertNull("length " + len, Codec.scanBlocks(Arrays.copyOf(blocks, len)));
+        }
+    }
+
+    @Test
+    public void trailingBytes() {
+        byte[] input = Codec.encode(coin());
+        assertNull(Codec.decode(Arrays.copyOf(input, input.length + 1)));
+        byte[] blocks = Codec.encode(Collections.singletonList(block(hash(), 1)));
+        assertNull(Codec.scanBlocks(Arrays.copyOf(blocks, blocks.length + 1)));
+    }
+
+    @Test
+    public void versionMismatch() {
+        byte[] input = Codec.encode(Collections.singletonList(block(hash(), 1)));
+        input[0] = (byte) (Codec.VERSION + 1);
+        assertNull(Codec.decode(input));
+        assertNull(Codec.scanBlocks(input));
+    }
+
+    @Test
+    public void malformedInput() {
+        // 知らない型
+        assertNull(Codec.decode(new byte[] { Codec.VERSION, 99 }));
+        // 残りより長い文字列
+        assertNull(Codec.decode(new byte[] { Codec.VERSION, 5, 0x7f, 0, 0, 0, 'a' }));
+        // 残りより多い要素数
+        assertNull(Codec.decode(new byte[] { Codec.VERSION, 4, 0x7f, 0, 0, 0 }));
+        // 有無のフラグが0でも1でもない
+        byte[] input = Codec.encode(coin());
+        input[2] = 2;
+        assertNull(Codec.decode(input));
+        // リストでない
+        assertNull(Codec.scanBlocks(Codec.encode(block(hash(), 1))));
+        assertNull(Codec.scanBlocks(Codec.encode(Collections.singletonList("abc"))));
+    }
+
+    @Test
+    public void deepList() {
+        Object obj = "abc";
+        for (int i = 0; i < Codec.MAX_DEPTH; i++) {
+            obj = Collections.singletonList(obj);
+        }
+        assertEquals(obj, roundTrip(obj));
+        assertNull(Codec.decode(Codec.encode(Collections.singletonList(obj))));
+        // 要素数1のListの型だけを並べた小さなデータでも、スタックを使い切らずに壊れたデータになる
+        ByteBuffer buf = ByteBuffer.allocate(1 + 100000 * 5);
+        buf.put(Codec.VERSION);
+        while (buf.hasRemaining()) {
+            buf.put((byte) 4).putInt(1);
+        }
+        assertNull(Codec.decode(buf.array()));
+    }
+
+    private static Object roundTrip(Object obj) {
+        byte[] input = Codec.encode(obj);
+        Object decoded = Codec.decode(input);
+        assertArrayEquals(input, Codec.encode(decoded));
+        return decoded;
+    }
+
+    private Block block(Hash prevHash, int coins) {
+        List<Coin> list = new ArrayList<>();
+        for (int i = 0; i < coins; i++) {
+            list.add(coin());
+        }
+        return new Block(prevHash, new CoinId(bytes(CoinId.LENGTH)), new Nonce(bytes(Nonce.LENGTH)),
+                random.nextLong(), random.nextInt(32), list);
+    }
+
+    private Coin coin() {
+        return new Coin(new CoinId(bytes(CoinId.LENGTH)), new Coin.Transaction(hash(), key()),
+                new Signature(bytes(Signature.LENGTH)));
+    }
+
+    private Hash hash() {
+        return new Hash(bytes(Hash.LENGTH));
+    }
+
+    private Key key() {
+        return new Key(bytes(Key.LENGTH));
+    }
+
+    private byte[] bytes(int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,66 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * HeaderHasherのテスト。midstateを使ったハッシュがヘッダ全体のハッシュ(Common.hash)と同じことを確かめる
+ */
+public class HeaderHasherTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void sameAsFullHash() {
+        for (int i = 0; i < 200; i++) {
+            BlockHeader header = header(i % 10 == 0 ? null : new Hash(bytes(Hash.LENGTH)));
+            HeaderHasher hasher = new HeaderHasher(header.toBytes());
+            assertArrayEquals(Common.hash(header.toBytes()), hasher.hash());
+        }
+    }
+
+    @Test
+    public void changedNonce() {
+        BlockHeader header = header(new Hash(bytes(Hash.LENGTH)));
+        HeaderHasher hasher = new HeaderHasher(header.toBytes());
+        for (int i = 0; i < 200; i++) {
+            byte[] nonce = bytes(Nonce.LENGTH);
+            if (i % 2 == 0) {
+                hasher.setNonce(nonce);
+            } else {
+                // 採掘のスレッドは1バイトずつ書き換える
+                for (int j = 0; j < nonce.length; j++) {
+                    hasher.setNonce(j, nonce[j]);
+                }
+            }
+            assertArrayEquals(nonce, hasher.getNonce());
+            BlockHeader expected = new BlockHeader(header.prevHash, header.coinsDigest, new Nonce(nonce),
+                    header.timestamp, header.difficulty);
+            assertArrayEquals(Common.hash(expected.toBytes()), hasher.hash());
+        }
+    }
+
+    @Test
+    public void foundBlockHasValidHash() {
+        BlockTemplate template = new BlockTemplate(new Hash(bytes(Hash.LENGTH)), new Coin(DigitalSign.generateKey()[0]),
+                ProofOfWork.MIN_DIFFICULTY);
+        template.timestamp = random.nextLong();
+        ProofOfWork.find(template, -1);
+        Block block = template.toBlock();
+        assertArrayEquals(Common.hash(block.getHeader().toBytes()), block.getHash().array());
+        assertTrue(ProofOfWork.checkHash(block));
+    }
+
+    private BlockHeader header(Hash prevHash) {
+        return new BlockHeader(prevHash, new Hash(bytes(Hash.LENGTH)), new Nonce(bytes(Nonce.LENGTH)),
+                random.nextLong(), random.nextInt(ProofOfWork.MAX_DIFFICULTY + 1));
+    }
+
+    private byte[] bytes(int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,59 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Histogramのテスト
+ */
+public class HistogramTest {
+    @Test
+    public void buckets() {
+        Histogram h = new Histogram();
+        h.record(0);
+        h.record(1);
+        h.record(2);
+        h.record(3);
+        h.record(4);
+        h.record(5);
+        assertEquals(2, h.getBucketCount(0));
+        assertEquals(1, h.getBucketCount(1));
+        assertEquals(2, h.getBucketCount(2));
+        assertEquals(1, h.getBucketCount(3));
+        assertEquals(Long.MAX_VALUE, h.getUpperBound(h.getBuckets() - 1));
+        h.record(Long.MAX_VALUE);
+        assertEquals(1, h.getBucketCount(h.getBuckets() - 1));
+    }
+
+    @Test
+    public void summary() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(99));
+        assertEquals(0, h.getMean(), 0);
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        h.record(-5);
+        assertEquals(101, h.getCount());
+        assertEquals(5050, h.getSum());
+        assertEquals(100, h.getMax());
+        assertEquals(64, h.getPercentile(50));
+        // 最後のバケットの上限より最大値が小さければ最大値
+        assertEquals(100, h.getPercentile(99));
+        assertEquals(1, h.getPercentile(0));
+    }
+
+    @Test
+    public void add() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.record(3);
+        b.record(10);
+        b.record(1000);
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(1013, a.getSum());
+        assertEquals(1000, a.getMax());
+        assertEquals(1, a.getBucketCount(4));
+    }
+}
@@ -0,0 +1,109 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * MerkleTreeとMerkleProofのテスト。どの数のコインでも証明が通り、書き換えた証明は通らないことを確かめる
+ */
+public class MerkleTreeTest {
+    private final Random random = new Random(7);
+
+    @Test
+    public void everyCoinVerifies() {
+        for (int n = 1; n <= 17; n++) {
+            List<Coin> coins = coins(n);
+            Hash root = MerkleTree.root(coins);
+            for (int i = 0; i < n; i++) {
+                MerkleProof proof = MerkleTree.proof(coins, i);
+                assertTrue(n + ":" + i, MerkleTree.verify(coins.get(i), proof, root));
+                MerkleProof decoded = MerkleProof.fromBytes(proof.toBytes());
+                assertEquals(proof.index, decoded.index);
+                assertEquals(proof.count, decoded.count);
+                assertEquals(proof.siblings, decoded.siblings);
+                assertTrue(n + ":" + i, MerkleTree.verify(coins.get(i), decoded, root));
+            }
+        }
+    }
+
+    @Test
+    public void singleCoin() {
+        List<Coin> coins = coins(1);
+        MerkleProof proof = MerkleTree.proof(coins, 0);
+        assertTrue(proof.siblings.isEmpty());
+        assertTrue(MerkleTree.verify(coins.get(0), proof, MerkleTree.root(coins)));
+        assertFalse(MerkleTree.verify(coins(1).get(0), proof, MerkleTree.root(coins)));
+    }
+
+    @Test
+    public void tamperedProofFails() {
+        for (int n = 2; n <= 9; n++) {
+            List<Coin> coins = coins(n);
+            Hash root = MerkleTree.root(coins);
+            for (int i = 0; i < n; i++) {
+                Coin coin = coins.get(i);
+                MerkleProof proof = MerkleTree.proof(coins, i);
+                // 兄弟のハッシュを1ビット変える
+                for (int k = 0; k < proof.siblings.size(); k++) {
+                    List<Hash> siblings = new ArrayList<>(proof.siblings);
+                    byte[] b = siblings.get(k).array().clone();
+                    b[0] ^= 1;
+                    siblings.set(k, new Hash(b));
+                    assertFalse(MerkleTree.verify(coin, new MerkleProof(i, n, siblings), root));
+                }
+                // 別の位置
+                for (int j = 0; j < n; j++) {
+                    if (j != i) {
+                        assertFalse(n + ":" + i + "->" + j,
+                                MerkleTree.verify(coin, new MerkleProof(j, n, proof.siblings), root));
+                    }
+                }
+                // 範囲外の位置、兄弟が足りない、余る
+                assertFalse(MerkleTree.verify(coin, new MerkleProof(n, n, proof.siblings), root));
+                assertFalse(MerkleTree.verify(coin, new MerkleProof(-1, n, proof.siblings), root));
+                assertFalse(MerkleTree.verify(coin,
+                        new MerkleProof(i, n, proof.siblings.subList(0, proof.siblings.size() - 1)), root));
+                List<Hash> extra = new ArrayList<>(proof.siblings);
+                extra.add(root);
+                assertFalse(MerkleTree.verify(coin, new MerkleProof(i, n, extra), root));
+                // 含まれていないコイン
+                assertFalse(MerkleTree.verify(coins(1).get(0), proof, root));
+            }
+        }
+    }
+
+    @Test
+    public void brokenProofBytes() {
+        assertNull(MerkleProof.fromBytes(new byte[] { 1, 2, 3 }));
+        assertNull(MerkleProof.fromBytes(Codec.encode(Collections.singletonList(1))));
+        List<Object> list = new ArrayList<>();
+        list.add(0);
+        list.add(2);
+        list.add("abc");
+        assertNull(MerkleProof.fromBytes(Codec.encode(list)));
+    }
+
+    private List<Coin> coins(int n) {
+        List<Coin> coins = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            byte[] id = new byte[CoinId.LENGTH];
+            byte[] hash = new byte[Hash.LENGTH];
+            byte[] key = new byte[Key.LENGTH];
+            byte[] sign = new byte[Signature.LENGTH];
+            random.nextBytes(id);
+            random.nextBytes(hash);
+            random.nextBytes(key);
+            random.nextBytes(sign);
+            coins.add(new Coin(new CoinId(id), new Coin.Transaction(new Hash(hash), new Key(key)), new Signature(sign)));
+        }
+        return coins;
+    }
+}
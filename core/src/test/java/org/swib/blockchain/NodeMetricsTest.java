@@ -0,0 +1,106 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * NodeMetricsとMetricsServerのテスト
+ */
+public class NodeMetricsTest {
+    @Test
+    public void rejectReasons() {
+        NodeMetrics metrics = new Node("reasons").getMetrics();
+        metrics.blockRejected(0);
+        metrics.blockRejected(1);
+        metrics.blockRejected(Node.BROKEN);
+        metrics.transactionRejected(7);
+        Map<String, Long> blocks = metrics.getBlocksRejected();
+        assertEquals(Long.valueOf(1), blocks.get("less_work"));
+        assertEquals(Long.valueOf(1), blocks.get("not_mined_block"));
+        assertEquals(Long.valueOf(1), blocks.get("broken"));
+        assertEquals(Long.valueOf(0), blocks.get("double_spending"));
+        assertEquals(Long.valueOf(1), metrics.getTransactionsRejected().get("double_spending"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownReason() {
+        new Node("unknown").getMetrics().blockRejected(-1);
+    }
+
+    @Test
+    public void nodeValues() {
+        Node node = new Node("values");
+        node.mining();
+        Inbox.awaitIdle();
+        NodeMetrics metrics = node.getMetrics();
+        assertEquals(1, metrics.getHeight());
+        assertEquals(1, metrics.getWallet());
+        assertEquals(1, metrics.getBlocksAccepted());
+        assertEquals(0, metrics.getMempoolSize());
+        assertTrue(metrics.getNonceAttempts() > 0);
+    }
+
+    @Test
+    public void jmx() throws Exception {
+        Node node = new Node("jmx");
+        NodeMetrics metrics = node.getMetrics();
+        ObjectName name = metrics.register();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(0, server.getAttribute(name, "Height"));
+            assertEquals(0L, server.getAttribute(name, "Reorgs"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void metricsServer() throws Exception {
+        Node node = new Node("server\"1");
+        node.getMetrics().recordSync(100, 5000);
+        MetricsServer server = new MetricsServer();
+        server.add(node.getMetrics());
+        int port = server.start("127.0.0.1", 0);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics")
+                    .openConnection();
+            assertEquals(200, connection.getResponseCode());
+            String text = read(connection.getInputStream());
+            assertTrue(text, text.contains("swib_height{node=\"server\\\"1\"} 0\n"));
+            assertTrue(text, text.contains("swib_blocks_rejected_total{node=\"server\\\"1\",reason=\"broken\"} 0\n"));
+            assertTrue(text, text.contains("swib_sync_bytes_bucket{node=\"server\\\"1\",le=\"128\"} 1\n"));
+            assertTrue(text, text.contains("swib_sync_bytes_bucket{node=\"server\\\"1\",le=\"+Inf\"} 1\n"));
+            assertTrue(text, text.contains("swib_sync_latency_us_sum{node=\"server\\\"1\"} 5\n"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String read(InputStream in) throws Exception {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
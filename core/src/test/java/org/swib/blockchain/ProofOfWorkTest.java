@@ -0,0 +1,56 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * ProofOfWorkのテスト。ヘッダに含まれない値を書き換えたブロックを承認しないことを確かめる
+ */
+public class ProofOfWorkTest {
+    @Test
+    public void changedCoinIdIsRejected() throws Exception {
+        List<Block> blocks = mine(new Node("miner"), 2);
+        Block block = blocks.get(1);
+        Block tampered = new Block(block.prevHash, CoinId.random(), block.nonce, block.timestamp, block.difficulty,
+                block.coins);
+        assertEquals(block.getHash(), tampered.getHash());
+        assertEquals(0, ProofOfWork.validate(blocks));
+        List<Block> chain = new ArrayList<>(blocks);
+        chain.set(1, tampered);
+        assertEquals(3, ProofOfWork.validate(chain));
+        ChainState state = new ChainState();
+        state.apply(blocks.get(0), blocks.get(0).getHash());
+        assertEquals(3, ProofOfWork.validate(Collections.singletonList(tampered), state));
+    }
+
+    @Test
+    public void tamperedCopyDoesNotHideHonestBlock() throws Exception {
+        Node miner = new Node("honest");
+        Block block = mine(miner, 1).get(0);
+        Block tampered = new Block(block.prevHash, CoinId.random(), block.nonce, block.timestamp, block.difficulty,
+                block.coins);
+        Node node = new Node("receiver");
+        node.announceBlock(1, Common.serialize(tampered), miner);
+        Inbox.awaitIdle();
+        assertEquals(0, node.getHeight());
+        node.announceBlock(1, Common.serialize(block), miner);
+        Inbox.awaitIdle();
+        assertEquals(1, node.getHeight());
+        assertEquals(block.coinId, mine(node, 0).get(0).coinId);
+    }
+
+    static List<Block> mine(Node node, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            node.mining();
+        }
+        Inbox.awaitIdle();
+        @SuppressWarnings("unchecked")
+        List<Block> list = (List<Block>) Common.deserialize(
+                node.requestBlocks(Common.serialize(Collections.emptyList())).get());
+        return list;
+    }
+}
@@ -0,0 +1,79 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * チェーンの入れ替えのテスト。仕事量の多い枝に入れ替わり、外れたブロックのトランザクションがMempoolに戻ることを確かめる
+ */
+public class ReorgTest {
+    @Test
+    public void heavierForkReplacesChainAndRestoresTransactions() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        Node receiver = new Node("receiver");
+        a.mining();
+        Inbox.awaitIdle();
+        b.syncBlock(blocks(a), a);
+        Inbox.awaitIdle();
+        assertEquals(1, b.getHeight());
+
+        // aはトランザクションを入れたブロックを(sendは自分でも採掘する)、bはそれより多い2つのブロックを掘る
+        a.send(receiver.getPublicKey());
+        b.mining();
+        b.mining();
+        Inbox.awaitIdle();
+        assertEquals(2, a.getHeight());
+        assertEquals(0, a.getMempoolSize());
+        assertEquals(1, walletOf(a, receiver.getPublicKey()));
+
+        // bの先端だけを通知すると、aは共通の祖先より後を問い合わせて仕事量で入れ替える
+        List<Block> chain = ProofOfWorkTest.mine(b, 0);
+        a.announceBlock(3, Common.serialize(chain.get(2)), b);
+        Inbox.awaitIdle();
+        assertEquals(3, a.getHeight());
+        assertEquals(1, a.getMetrics().getReorgs());
+        assertEquals(1, a.getSideBlocks());
+        assertEquals(1, a.getMempoolSize());
+        assertEquals(0, walletOf(a, receiver.getPublicKey()));
+
+        // 戻したトランザクションは次のブロックに入る
+        a.mining();
+        Inbox.awaitIdle();
+        assertEquals(0, a.getMempoolSize());
+        assertEquals(1, walletOf(a, receiver.getPublicKey()));
+    }
+
+    @Test
+    public void forkWithLessWorkIsKeptAsSideBranch() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        a.mining();
+        Inbox.awaitIdle();
+        b.syncBlock(blocks(a), a);
+        Inbox.awaitIdle();
+        a.mining();
+        a.mining();
+        b.mining();
+        Inbox.awaitIdle();
+        List<Block> chain = ProofOfWorkTest.mine(b, 0);
+        a.announceBlock(2, Common.serialize(chain.get(1)), b);
+        Inbox.awaitIdle();
+        assertEquals(3, a.getHeight());
+        assertEquals(0, a.getMetrics().getReorgs());
+        assertEquals(1, a.getSideBlocks());
+    }
+
+    private static byte[] blocks(Node node) throws Exception {
+        return node.requestBlocks(Common.serialize(Collections.emptyList())).get();
+    }
+
+    private static int walletOf(Node node, Key key) throws Exception {
+        @SuppressWarnings("unchecked")
+        List<Object> coins = (List<Object>) Common.deserialize(node.requestCoins(Common.serialize(key)).get());
+        return coins.size();
+    }
+}
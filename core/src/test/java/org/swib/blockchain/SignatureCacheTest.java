@@ -0,0 +1,108 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * SignatureCacheのテスト
+ */
+public class SignatureCacheTest {
+    private static final Key KEY = DigitalSign.generateKey()[0];
+    private static final Key OTHER = DigitalSign.generateKey()[0];
+
+    @Test
+    public void hitAndMiss() {
+        SignatureCache cache = new SignatureCache(32);
+        Hash hash = hash(1);
+        assertFalse(cache.contains(hash, KEY));
+        cache.add(hash, KEY);
+        assertTrue(cache.contains(hash, KEY));
+        // 別の公開鍵では検証済みにならない
+        assertFalse(cache.contains(hash, OTHER));
+        assertFalse(cache.contains(hash(2), KEY));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertFalse(cache.contains(hash, KEY));
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void disabled() {
+        SignatureCache cache = new SignatureCache(0);
+        cache.add(hash(1), KEY);
+        assertFalse(cache.contains(hash(1), KEY));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedInSegment() {
+        // 区画ごとの容量は2
+        SignatureCache cache = new SignatureCache(SignatureCache.SEGMENTS * 2);
+        List<Hash> same = inSegment(0, 3);
+        cache.add(same.get(0), KEY);
+        cache.add(same.get(1), KEY);
+        // 最初のものを使うと、2番目のものが一番古くなる
+        assertTrue(cache.contains(same.get(0), KEY));
+        cache.add(same.get(2), KEY);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(same.get(0), KEY));
+        assertFalse(cache.contains(same.get(1), KEY));
+        assertTrue(cache.contains(same.get(2), KEY));
+    }
+
+    @Test
+    public void segmentsEvictIndependently() {
+        SignatureCache cache = new SignatureCache(SignatureCache.SEGMENTS * 2);
+        List<Hash> others = new ArrayList<>();
+        for (int i = 1; i < SignatureCache.SEGMENTS; i++) {
+            others.addAll(inSegment(i, 2));
+        }
+        for (Hash hash : others) {
+            cache.add(hash, KEY);
+        }
+        // 1つの区画にだけ容量を超えて入れても、他の区画の記録は捨てられない
+        for (Hash hash : inSegment(0, 10)) {
+            cache.add(hash, KEY);
+        }
+        assertEquals(8, cache.getEvictions());
+        assertEquals(SignatureCache.SEGMENTS * 2, cache.size());
+        for (Hash hash : others) {
+            assertTrue(cache.contains(hash, KEY));
+        }
+    }
+
+    private static Hash hash(int n) {
+        byte[] b = new byte[Hash.LENGTH];
+        b[0] = (byte) (n >> 24);
+        b[1] = (byte) (n >> 16);
+        b[2] = (byte) (n >> 8);
+        b[3] = (byte) n;
+        return new Hash(b);
+    }
+
+    /**
+     * 指定した区画に入るハッシュを集める
+     */
+    private static List<Hash> inSegment(int segment, int count) {
+        List<Hash> hashes = new ArrayList<>();
+        for (int n = 0; hashes.size() < count; n++) {
+            Hash hash = hash(n);
+            if (SignatureCache.indexOf(hash) == segment) {
+                hashes.add(hash);
+            }
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,277 @@
+package org.swib.blockchain;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SocketTransportのテスト。ループバックで2つのトランスポートをつなぎ、フレームの送受信と異常な相手の扱いを確かめる
+ */
+public class SocketTransportTest {
+    private final Peer peer = new Peer();
+    private SocketTransport server;
+    private SocketTransport client;
+    private String address;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new SocketTransport(peer, 1);
+        address = server.listen("127.0.0.1", 0);
+        client = new SocketTransport(null, 1);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void requestAndResponse() throws Exception {
+        // connectは同じプロセスのノードを直接返すので、ソケットを使うノードを作る
+        RemoteNode remote = new SocketRemoteNode(client, address, 2);
+        for (int i = 0; i < 10; i++) {
+            byte[] locator = { (byte) i, 1, 2, 3 };
+            assertArrayEquals(locator, remote.requestBlocks(locator).get(5, TimeUnit.SECONDS));
+        }
+        remote.announceBlock(7, new byte[] { 1, 2, 3 }, remote);
+        waitAnnounced(1);
+    }
+
+    @Test
+    public void announceWithoutSender() throws Exception {
+        RemoteNode remote = new SocketRemoteNode(client, address, 1);
+        // LightNodeなど、送り主の無い通知もある
+        remote.announceBlock(3, new byte[] { 1 }, null);
+        remote.announceTransaction(new byte[] { 2 }, null);
+        waitAnnounced(1);
+        assertNull(peer.sender.getAddress());
+    }
+
+    @Test
+    public void largeFrames() throws Exception {
+        RemoteNode remote = new SocketRemoteNode(client, address, 1);
+        // 読み込みバッファより大きい応答の後も、普通の大きさの応答を受け取れる
+        byte[] large = new byte[Node.MAX_REPLY_BYTES];
+        large[large.length - 1] = 42;
+        assertArrayEquals(large, remote.requestBlocks(large).get(10, TimeUnit.SECONDS));
+        byte[] small = { 1, 2, 3 };
+        assertArrayEquals(small, remote.requestBlocks(small).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void tooLargeFrameClosesConnection() throws Exception {
+        SocketTransport.Connection connection = client.open(address);
+        CompletableFuture<byte[]> future = connection.request(SocketTransport.REQUEST_BLOCKS,
+                new byte[Node.MAX_REPLY_BYTES + 1]);
+        assertFailed(future, IOException.class);
+        assertEquals(0, connection.getPending());
+    }
+
+    @Test
+    public void brokenSenderClosesConnection() throws Exception {
+        SocketTransport.Connection connection = client.open(address);
+        // 送り主のアドレスの長さが本体より長い
+        ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 1);
+        buf.putInt(1);
+        buf.putInt(Integer.MAX_VALUE);
+        buf.put((byte) 0);
+        connection.send(SocketTransport.ANNOUNCE_BLOCK, 0, buf.array());
+        waitClosed(connection);
+        assertEquals(0, peer.announced.get());
+    }
+
+    @Test
+    public void unknownTypeClosesConnection() throws Exception {
+        SocketTransport.Connection connection = client.open(address);
+        connection.send((byte) 99, 0, new byte[0]);
+        waitClosed(connection);
+    }
+
+    @Test
+    public void throttledPeerIsDisconnectedAcrossReconnects() throws Exception {
+        PeerMonitor monitor = new PeerMonitor();
+        SocketTransport.Connection first = client.open(address);
+        RemoteNode sender = announce(first);
+        for (int i = 0; i < PeerMonitor.MIN_MESSAGES; i++) {
+            monitor.record(sender, true);
+        }
+        waitClosed(first);
+        // つなぎ直しても(ポートが変わっても)同じIPアドレスなので捨てられ、接続も切られる
+        SocketTransport.Connection second = client.open(address);
+        assertTrue(monitor.isThrottled(announce(second)));
+        waitClosed(second);
+    }
+
+    @Test
+    public void slowReaderReceivesWholeFrame() throws Exception {
+        try (ServerSocket raw = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            SocketTransport.Connection connection = client.open("127.0.0.1:" + raw.getLocalPort());
+            byte[] payload = new byte[2 * 1024 * 1024];
+            new Random(1).nextBytes(payload);
+            connection.send(SocketTransport.RESPONSE, 5, payload);
+            try (Socket socket = raw.accept()) {
+                // 少しずつ読むので、送る側では書き込みが何回にも分かれる
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                assertEquals(1 + 4 + payload.length, in.readInt());
+                assertEquals(SocketTransport.RESPONSE, in.readByte());
+                assertEquals(5, in.readInt());
+                byte[] received = new byte[payload.length];
+                for (int off = 0; off < received.length;) {
+                    off += in.read(received, off, Math.min(64 * 1024, received.length - off));
+                    Thread.sleep(2);
+                }
+                assertArrayEquals(payload, received);
+            }
+            assertEquals(0, connection.getQueued());
+        }
+    }
+
+    @Test
+    public void nonReadingPeerIsDisconnected() throws Exception {
+        client.setMaxQueuedBytes(1024 * 1024);
+        try (ServerSocket raw = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            SocketTransport.Connection connection = client.open("127.0.0.1:" + raw.getLocalPort());
+            try (Socket socket = raw.accept()) {
+                // 相手は読まないので、ソケットのバッファが埋まった後はキューに溜まり、上限を超えたら切られる
+                byte[] payload = new byte[64 * 1024];
+                for (int i = 0; i < 10000 && !connection.isClosed(); i++) {
+                    connection.send(SocketTransport.ANNOUNCE_BLOCK, 0, payload);
+                    assertTrue(connection.getQueued() <= 1024 * 1024);
+                    Thread.sleep(1);
+                }
+                waitClosed(connection);
+                assertEquals(0, connection.getQueued());
+            }
+        }
+    }
+
+    @Test
+    public void requestTimeout() throws Exception {
+        client.setRequestTimeout(200);
+        SocketTransport.Connection connection = client.open(address);
+        CompletableFuture<byte[]> future = connection.request(SocketTransport.REQUEST_HEADERS, new byte[0]);
+        assertFailed(future, TimeoutException.class);
+        assertEquals(0, connection.getPending());
+    }
+
+    @Test
+    public void closeFailsPendingRequests() throws Exception {
+        SocketTransport.Connection connection = client.open(address);
+        CompletableFuture<byte[]> future = connection.request(SocketTransport.REQUEST_HEADERS, new byte[0]);
+        server.close();
+        assertFailed(future, IOException.class);
+        assertEquals(0, connection.getPending());
+    }
+
+    private static void assertFailed(CompletableFuture<byte[]> future, Class<?> cause) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Not failed");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), cause.isInstance(e.getCause()));
+        }
+    }
+
+    /**
+     * 接続からブロックを通知し、受けた側で作られた送り主を返す
+     */
+    private RemoteNode announce(SocketTransport.Connection connection) throws InterruptedException {
+        int count = peer.announced.get();
+        ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 1);
+        buf.putInt(1);
+        buf.putInt(-1);
+        buf.put((byte) 0);
+        connection.send(SocketTransport.ANNOUNCE_BLOCK, 0, buf.array());
+        waitAnnounced(count + 1);
+        return peer.sender;
+    }
+
+    /**
+     * 通知を受けた数がcountになるまで待つ(受けた側は2つのスレッドで処理するので、後に送った応答が先に返ることがある)
+     */
+    private void waitAnnounced(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (peer.announced.get() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, peer.announced.get());
+    }
+
+    private static void waitClosed(SocketTransport.Connection connection) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!connection.isClosed() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(connection.isClosed());
+    }
+
+    /**
+     * 受け取ったメッセージを数えるだけのノード。requestBlocksはロケータをそのまま返し、requestHeadersは応答しない
+     */
+    private static class Peer implements RemoteNode {
+        final AtomicInteger announced = new AtomicInteger();
+        volatile RemoteNode sender;
+
+        public void syncBlock(byte[] input, RemoteNode sender) {
+        }
+
+        public void announceBlock(int height, byte[] input, RemoteNode sender) {
+            this.sender = sender;
+            announced.incrementAndGet();
+        }
+
+        public CompletableFuture<byte[]> requestBlocks(byte[] locator) {
+            return CompletableFuture.completedFuture(locator);
+        }
+
+        public CompletableFuture<byte[]> requestHeaders(byte[] locator) {
+            return new CompletableFuture<>();
+        }
+
+        public CompletableFuture<byte[]> requestCoins(byte[] publicKey) {
+            return CompletableFuture.completedFuture(new byte[0]);
+        }
+
+        public CompletableFuture<Boolean> requestTransaction(byte[] input, RemoteNode sender) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        public void announceTransaction(byte[] input, RemoteNode sender) {
+        }
+
+        public void addNode(RemoteNode node) {
+        }
+
+        public void removeNode(RemoteNode node) {
+        }
+
+        public CompletableFuture<List<RemoteNode>> requestPeers() {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        public String getAddress() {
+            return null;
+        }
+    }
+}
@@ -1,7 +1,18 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+import javax.management.JMException;
+
+import org.swib.blockchain.Inbox;
+import org.swib.blockchain.Logger;
+import org.swib.blockchain.MetricsServer;
 import org.swib.blockchain.Node;
 import org.swib.blockchain.NodeOperator;
+import org.swib.blockchain.SocketTransport;
+import org.swib.simulator.ScenarioSimulation;
 
 /**
  * Mainクラス
@@ -11,8 +22,18 @@ public class Main {
 	private static NodeOperator[] nodes;
 	private static Scanner scanner = new Scanner(System.in);
 	private static boolean auto = false;
+	private static String host = "127.0.0.1";
+	private static int port = -1;
+	private static List<String> peers = new ArrayList<>();
+	private static String data = null;
+	private static int metricsPort = -1;
 
 	public static void main(String[] args) {
+	    // --scenario <file>: 入力を使わずにシナリオを実行してレポートを出す(ScenarioSimulation)
+	    if (args.length > 1 && args[0].equals("--scenario")) {
+	        ScenarioSimulation.main(new String[] { args[1] });
+	        return;
+	    }
 	    int n = 4;
 	    if (args.length > 0) {
 	        try {
@@ -25,6 +46,22 @@ public class Main {
 	        auto = true;
 	        n = -n;
 	    }
+	    // --listen <port>: ノードiはport+iで待ち受ける --host <host> --peer <host:port>: 接続する他のプロセスのノード
+	    // --data <dir>: ノードごとにdir/ノード名にブロックチェーンを保存する(次に起動した時はそこから読む)
+	    // --metrics <port>: 全ノードの統計をhttp://host:port/metricsで返す(JMXには常に登録する)
+	    for (int i = 1; i + 1 < args.length; i += 2) {
+	        if (args[i].equals("--listen")) {
+	            port = Integer.parseInt(args[i + 1]);
+	        } else if (args[i].equals("--host")) {
+	            host = args[i + 1];
+	        } else if (args[i].equals("--peer")) {
+	            peers.add(args[i + 1]);
+	        } else if (args[i].equals("--data")) {
+	            data = args[i + 1];
+	        } else if (args[i].equals("--metrics")) {
+	            metricsPort = Integer.parseInt(args[i + 1]);
+	        }
+	    }
         init(n);
 		
 		int[] input;
@@ -40,6 +77,8 @@ public class Main {
 
 	private static void init(int n) {
 		nodes = createNode(n);
+		Inbox.awaitIdle();
+		Logger.flush();
 		digit();
 		System.out.println();
 	}
@@ -117,6 +156,8 @@ public class Main {
             node.wrongTranaction(3);
 		}
 
+		Inbox.awaitIdle();
+		Logger.flush();
 		digit();
 		System.out.println();
 	}
@@ -135,13 +176,55 @@ public class Main {
 
 	private static Node[] createNode(int n) {
 		Node[] list = new Node[n];
+		SocketTransport[] transports = new SocketTransport[n];
 		for (int i = 0; i < n; i ++) {
 			String name = "Node" + i;
-			Node node = new Node(name);
+			Node node = null;
+			if (data != null) {
+				try {
+					node = new Node(name, Runtime.getRuntime().availableProcessors(), new File(data, name));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (node == null) {
+				node = new Node(name);
+			}
 			list[i] = node;
+			try {
+				node.getMetrics().register();
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			
+			if (port >= 0 || !peers.isEmpty()) {
+				try {
+					transports[i] = new SocketTransport(node, 2);
+					node.setAddress(transports[i].listen(host, port < 0 ? 0 : port + i));
+					System.out.println(name + " listening on " + node.getAddress());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 			
 			if (i > 0) {
-				list[0].addNode(node);
+				node.addNode(list[0]);
+			}
+		}
+		for (String peer : peers) {
+			if (transports[0] != null) {
+				list[0].addNode(transports[0].connect(peer));
+			}
+		}
+		if (metricsPort >= 0) {
+			MetricsServer server = new MetricsServer();
+			for (Node node : list) {
+				server.add(node.getMetrics());
+			}
+			try {
+				System.out.println("Metrics on http://" + host + ":" + server.start(host, metricsPort) + "/metrics");
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 		return list;
@@ -1,49 +1,125 @@
 package org.swib.blockchain;
-import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * ブロック。コインのトランザクションを複数含む
+ * ブロック。コインのトランザクションを複数含む<br>
+ * 作った後は変更できないので、ハッシュは最初に使われた時に一度だけ計算して覚えておく。
+ * 採掘中のNonceやコインを変えられるブロックはBlockTemplate
  */
-public class Block implements Serializable {
+public class Block {
     /**
      * Nonce. これを適切な値にすることによりこのブロックが各ノードで承認される
      */
-    public String nonce;
+    public final Nonce nonce;
 
     /**
-     * 前のブロックのハッシュ
+     * 前のブロックのハッシュ。ジェネシスブロックではnull
      */
-    public final String prevHash;
+    public final Hash prevHash;
+
+    /**
+     * 採掘を始めた時刻(ミリ秒)
+     */
+    public final long timestamp;
+
+    /**
+     * 難易度。ハッシュの先頭のこのBit数が0なら採掘成功
+     */
+    public final int difficulty;
     
     /**
      * このブロック生成時に採掘したコインID
      */
-    public final String coinId;
+    public final CoinId coinId;
     
     /**
-     * このブロックが保証するトランザクション
+     * このブロックが保証するトランザクション(変更できない)
      */
-    public final List<Coin> coins = new ArrayList<>();
+    public final List<Coin> coins;
+
+    private volatile Hash coinsDigest;
+    private volatile Hash hash;
 
     /**
-     * コンストラクタ
-     * 
+     * コンストラクタ(デシリアライズとBlockTemplate.toBlockで使う)
+     *
      * @param prevHash 前のブロックのハッシュ
-     * @param coin このブロック生成時に採掘したコイン(報酬)
+     * @param coinId このブロック生成時に採掘したコインID
+     * @param nonce Nonce
+     * @param timestamp 採掘を始めた時刻
+     * @param difficulty 難易度
+     * @param coins このブロックが保証するトランザクション
      */
-    public Block(String prevHash, Coin coin) {
+    Block(Hash prevHash, CoinId coinId, Nonce nonce, long timestamp, int difficulty, List<Coin> coins) {
         this.prevHash = prevHash;
-        this.coinId = coin.id;
-        coins.add(coin);
+        this.coinId = coinId;
+        this.nonce = nonce;
+        this.timestamp = timestamp;
+        this.difficulty = difficulty;
+        this.coins = Collections.unmodifiableList(new ArrayList<>(coins));
+    }
+
+    /**
+     * ブロックヘッダ。コインはダイジェストだけが含まれる
+     *
+     * @return ブロックヘッダ
+     */
+    public BlockHeader getHeader() {
+        return new BlockHeader(prevHash, getCoinsDigest(), nonce, timestamp, difficulty);
+    }
+
+    /**
+     * コインのダイジェスト(マークル木の根)
+     *
+     * @return ダイジェスト
+     */
+    public Hash getCoinsDigest() {
+        Hash digest = coinsDigest;
+        if (digest == null) {
+            digest = MerkleTree.root(coins);
+            coinsDigest = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * コインがこのブロックに含まれることの証明。ブロックヘッダだけを持っている相手に渡せば検証できる
+     *
+     * @param coin コイン
+     * @return 証明。含まれていなければnull
+     */
+    public MerkleProof getProof(Coin coin) {
+        Hash hash = coin.getHash();
+        for (int i = 0; i < coins.size(); i++) {
+            if (coins.get(i).getHash().equals(hash)) {
+                return MerkleTree.proof(coins, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * ブロックのハッシュ(ブロックヘッダのハッシュ)
+     *
+     * @return ハッシュ
+     */
+    public Hash getHash() {
+        Hash h = hash;
+        if (h == null) {
+            h = getHeader().hash();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Hash: " + DigitalSign.hash(this) + ", ");
+        sb.append("Hash: " + getHash() + ", ");
         sb.append("nonce:" + nonce + ", ");
+        sb.append("difficulty:" + difficulty + ", ");
         sb.append("Prev Hash:" + prevHash + ", ");
         //sb.append(" Coins: " + coins);
         return sb.toString();
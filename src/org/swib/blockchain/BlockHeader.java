@@ -0,0 +1,99 @@
+package org.swib.blockchain;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ブロックヘッダ。ブロックのハッシュはこの固定長のバイト列から計算する<br>
+ * レイアウトは下記の通り(合計96バイト)。数値はビッグエンディアン
+ * <ul>
+ * <li>0-31: 前のブロックのハッシュ(ジェネシスブロックでは0)
+ * <li>32-63: ブロックに含まれるコインのマークル木の根(MerkleTree)
+ * <li>64-83: Nonce
+ * <li>84-91: タイムスタンプ(ミリ秒)
+ * <li>92-95: 難易度(ハッシュの先頭の0のBit数)
+ * </ul>
+ * 先頭64バイトはSHA-256の1ブロック分なので、採掘中はその途中状態を使い回せる
+ */
+public class BlockHeader {
+    public static final int HASH_LEN = Hash.LENGTH;
+    public static final int NONCE_LEN = 20;
+    public static final int PREFIX_LEN = HASH_LEN * 2;
+    public static final int TIMESTAMP_OFFSET = PREFIX_LEN + NONCE_LEN;
+    public static final int DIFFICULTY_OFFSET = TIMESTAMP_OFFSET + 8;
+    public static final int SIZE = DIFFICULTY_OFFSET + 4;
+
+    /** 前のブロックのハッシュ */
+    public final Hash prevHash;
+    /** ブロックに含まれるコインのダイジェスト(マークル木の根) */
+    public final Hash coinsDigest;
+    /** Nonce */
+    public final Nonce nonce;
+    /** タイムスタンプ */
+    public final long timestamp;
+    /** 難易度 */
+    public final int difficulty;
+
+    public BlockHeader(Hash prevHash, Hash coinsDigest, Nonce nonce, long timestamp, int difficulty) {
+        this.prevHash = prevHash;
+        this.coinsDigest = coinsDigest;
+        this.nonce = nonce;
+        this.timestamp = timestamp;
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * 固定長のバイト列にする。nullのフィールドは0で埋める
+     *
+     * @return ヘッダのバイト列
+     */
+    public byte[] toBytes() {
+        byte[] buf = new byte[SIZE];
+        put(buf, 0, prevHash);
+        put(buf, HASH_LEN, coinsDigest);
+        put(buf, PREFIX_LEN, nonce);
+        ByteBuffer.wrap(buf).putLong(TIMESTAMP_OFFSET, timestamp).putInt(DIFFICULTY_OFFSET, difficulty);
+        return buf;
+    }
+
+    /**
+     * 固定長のバイト列から戻す。前のブロックのハッシュが0ならジェネシスブロック(null)とする
+     *
+     * @param buf ヘッダのバイト列(toBytes)
+     * @return ヘッダ
+     */
+    public static BlockHeader fromBytes(byte[] buf) {
+        if (buf.length != SIZE) {
+            throw new IllegalArgumentException("Illegal header length: " + buf.length);
+        }
+        ByteBuffer b = ByteBuffer.wrap(buf);
+        byte[] prev = Arrays.copyOfRange(buf, 0, HASH_LEN);
+        return new BlockHeader(isZero(prev) ? null : new Hash(prev),
+                new Hash(Arrays.copyOfRange(buf, HASH_LEN, PREFIX_LEN)),
+                new Nonce(Arrays.copyOfRange(buf, PREFIX_LEN, TIMESTAMP_OFFSET)), b.getLong(TIMESTAMP_OFFSET),
+                b.getInt(DIFFICULTY_OFFSET));
+    }
+
+    /**
+     * ヘッダのハッシュ。ブロックのハッシュはこの値
+     *
+     * @return ハッシュ
+     */
+    public Hash hash() {
+        return new Hash(Common.hash(toBytes()));
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void put(byte[] buf, int offset, FixedBytes value) {
+        if (value != null) {
+            value.copyTo(buf, offset);
+        }
+    }
+}
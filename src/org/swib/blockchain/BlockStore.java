@@ -0,0 +1,312 @@
+package org.swib.blockchain;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ブロックチェーンをファイルに保存するリスト<br>
+ * ブロックはセグメントファイル(blocks00000.dat, ...)の末尾に追記するだけで、途中を書き換えるのは巻き戻しで末尾を切り詰める時だけ。
+ * 索引ファイル(blocks.idx)にはブロックごとにセグメント番号、位置、ハッシュを固定長で書く。<br>
+ * 開き直す時は索引だけを読むので、ブロックのデシリアライズは読まれた時に初めて行う(セグメントはメモリマップで読む)。<br>
+ * fsyncは毎回ではなくsyncEvery個のブロックごとにまとめて行う。それまでに落ちた場合は最後の数ブロックが失われるが、
+ * 索引はデータより後に書くので、残ったブロックは必ず読める
+ * <ul>
+ * <li>データ: 長さ(int) ブロック(Codec)
+ * <li>索引: セグメント番号(int) 位置(int) ハッシュ(32byte)
+ * </ul>
+ */
+public class BlockStore extends AbstractList<Block> implements Closeable {
+    private static final Logger LOGGER = new Logger("BlockStore");
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int INDEX_LEN = 4 + 4 + BlockHeader.HASH_LEN;
+    private static final int CACHE_SIZE = 256;
+
+    private final File dir;
+    private final int syncEvery;
+    private final FileChannel index;
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final List<MappedByteBuffer> maps = new ArrayList<>();
+    private final List<Integer> segmentOf = new ArrayList<>();
+    private final List<Integer> offsetOf = new ArrayList<>();
+    private final List<Hash> hashes = new ArrayList<>();
+    private final Map<Integer, Block> cache = new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private int unsynced;
+
+    /**
+     * ブロックチェーンを開く。ディレクトリが無ければ作る
+     *
+     * @param dir 保存先のディレクトリ
+     * @param syncEvery fsyncするまでに書くブロックの数
+     * @throws IOException 開けない
+     */
+    public BlockStore(File dir, int syncEvery) throws IOException {
+        this.dir = dir;
+        this.syncEvery = Math.max(1, syncEvery);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        index = FileChannel.open(new File(dir, "blocks.idx").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (int i = 0; segmentFile(i).exists(); i++) {
+            segments.add(openSegment(i));
+            maps.add(null);
+        }
+        recover();
+    }
+
+    /**
+     * ブロックを読む。最近読んだブロックは同じオブジェクトを返す
+     *
+     * @param height ブロックの位置(0から)
+     * @return ブロック。壊れていて読めない(長さが合わない、デコードできない、ハッシュが索引と違う)時はnull
+     */
+    @Override
+    public synchronized Block get(int height) {
+        Block block = cache.get(height);
+        if (block == null) {
+            block = read(height);
+            if (block != null) {
+                cache.put(height, block);
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    /**
+     * ブロックを末尾に追記する
+     */
+    @Override
+    public synchronized boolean add(Block block) {
+        try {
+            append(block, block.getHash());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * 末尾のブロックを取り除く(末尾以外は取り除けない)
+     */
+    @Override
+    public synchronized Block remove(int height) {
+        if (height != hashes.size() - 1) {
+            throw new UnsupportedOperationException("Only the last block can be removed");
+        }
+        Block block = get(height);
+        try {
+            truncate(height);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return block;
+    }
+
+    /**
+     * 保存されているブロックのハッシュ(古い順)。ブロックを読まずに得られる
+     */
+    public synchronized List<Hash> getHashes() {
+        return Collections.unmodifiableList(new ArrayList<>(hashes));
+    }
+
+    /**
+     * 書いたブロックと索引をディスクに書き出す
+     *
+     * @throws IOException 書き出せない
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0 && !segments.isEmpty()) {
+            segments.get(segments.size() - 1).force(false);
+            index.force(false);
+        }
+        unsynced = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!index.isOpen()) {
+            return;
+        }
+        sync();
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+        index.close();
+    }
+
+    private void append(Block block, Hash hash) throws IOException {
+        byte[] data = Common.serialize(block);
+        int len = 4 + data.length;
+        int seg = segments.size() - 1;
+        if (seg < 0 || segments.get(seg).size() + len > SEGMENT_SIZE && segments.get(seg).size() > 0) {
+            // セグメントを切り替える前に前のセグメントを書き出しておく
+            if (seg >= 0) {
+                segments.get(seg).force(false);
+            }
+            seg++;
+            segments.add(openSegment(seg));
+            maps.add(null);
+        }
+        FileChannel segment = segments.get(seg);
+        int offset = (int) segment.size();
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        buf.putInt(data.length);
+        buf.put(data);
+        buf.flip();
+        writeFully(segment, buf, offset);
+
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_LEN);
+        entry.putInt(seg);
+        entry.putInt(offset);
+        hash.writeTo(entry);
+        entry.flip();
+        writeFully(index, entry, (long) hashes.size() * INDEX_LEN);
+
+        segmentOf.add(seg);
+        offsetOf.add(offset);
+        hashes.add(hash);
+        cache.put(hashes.size() - 1, block);
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    private Block read(int height) {
+        int seg = segmentOf.get(height);
+        int offset = offsetOf.get(height);
+        try {
+            MappedByteBuffer map = maps.get(seg);
+            if (map == null || map.limit() < offset + 4 || map.limit() < offset + 4 + map.getInt(offset)) {
+                // 追記中のセグメントはマップした後に伸びているので、マップし直す
+                FileChannel segment = segments.get(seg);
+                map = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+                maps.set(seg, map);
+            }
+            int len = map.getInt(offset);
+            if (len < 0 || offset + 4L + len > map.limit()) {
+                LOGGER.warn("Broken block length: {} at {}", len, height);
+                return null;
+            }
+            byte[] data = new byte[len];
+            ByteBuffer view = map.duplicate();
+            view.position(offset + 4);
+            view.get(data);
+            Object obj = Common.deserialize(data);
+            if (!(obj instanceof Block) || !((Block) obj).getHash().equals(hashes.get(height))) {
+                LOGGER.warn("Unreadable block: {}", height);
+                return null;
+            }
+            return (Block) obj;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void truncate(int height) throws IOException {
+        int seg = segmentOf.get(height);
+        int offset = offsetOf.get(height);
+        // 索引を先に切り詰める(データだけ残っても読まれない)
+        index.truncate((long) height * INDEX_LEN);
+        for (int i = segments.size() - 1; i > seg; i--) {
+            segments.remove(i).close();
+            maps.remove(i);
+            if (!segmentFile(i).delete()) {
+                throw new IOException("Cannot delete " + segmentFile(i));
+            }
+        }
+        segments.get(seg).truncate(offset);
+        maps.set(seg, null);
+        for (int i = hashes.size() - 1; i >= height; i--) {
+            segmentOf.remove(i);
+            offsetOf.remove(i);
+            hashes.remove(i);
+            cache.remove(i);
+        }
+        unsynced++;
+    }
+
+    /**
+     * 索引を読み込む。途中で書くのに失敗したブロックがあれば、そこから後を捨てる
+     */
+    private void recover() throws IOException {
+        long count = index.size() / INDEX_LEN;
+        ByteBuffer buf = ByteBuffer.allocate((int) (count * INDEX_LEN));
+        while (buf.hasRemaining() && index.read(buf, buf.position()) > 0) {
+            // None
+        }
+        buf.flip();
+        byte[] hash = new byte[Hash.LENGTH];
+        ByteBuffer len = ByteBuffer.allocate(4);
+        for (int i = 0; i < count; i++) {
+            int seg = buf.getInt();
+            int offset = buf.getInt();
+            buf.get(hash);
+            if (seg >= segments.size()) {
+                break;
+            }
+            FileChannel segment = segments.get(seg);
+            len.clear();
+            if (segment.read(len, offset) != 4 || offset + 4L + len.getInt(0) > segment.size()) {
+                break;
+            }
+            segmentOf.add(seg);
+            offsetOf.add(offset);
+            hashes.add(new Hash(hash));
+        }
+
+        // 索引に無いデータを捨てる
+        index.truncate((long) hashes.size() * INDEX_LEN);
+        int last = hashes.isEmpty() ? -1 : segmentOf.get(hashes.size() - 1);
+        for (int i = segments.size() - 1; i > Math.max(last, 0); i--) {
+            segments.remove(i).close();
+            maps.remove(i);
+            segmentFile(i).delete();
+        }
+        if (last >= 0) {
+            int end = offsetOf.get(hashes.size() - 1);
+            len.clear();
+            segments.get(last).read(len, end);
+            segments.get(last).truncate(end + 4L + len.getInt(0));
+        } else if (!segments.isEmpty()) {
+            segments.get(0).truncate(0);
+        }
+    }
+
+    private FileChannel openSegment(int i) throws IOException {
+        return FileChannel.open(segmentFile(i).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private File segmentFile(int i) {
+        return new File(dir, String.format("blocks%05d.dat", i));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.swib.blockchain;
+
+/**
+ * コインを読まずに取り出したブロックの要約(Codec.scanBlocks)<br>
+ * 受け取ったチェーンを全部デシリアライズする前に、安く調べられることだけを先に調べるのに使う。
+ * 値は送り主が主張しているだけで、まだ検証されていない
+ */
+public class BlockSummary {
+    /** 前のブロックのハッシュ */
+    public final Hash prevHash;
+    /** タイムスタンプ */
+    public final long timestamp;
+    /** 難易度 */
+    public final int difficulty;
+    /** コインの数 */
+    public final int coins;
+    /** バイナリの中のブロックの本体の位置とバイト数(Codec.decodeBlock) */
+    final int offset;
+    final int length;
+
+    BlockSummary(Hash prevHash, long timestamp, int difficulty, int coins, int offset, int length) {
+        this.prevHash = prevHash;
+        this.timestamp = timestamp;
+        this.difficulty = difficulty;
+        this.coins = coins;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * バイナリの中のブロックのバイト数
+     */
+    public int getLength() {
+        return length;
+    }
+}
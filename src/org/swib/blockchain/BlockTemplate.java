@@ -0,0 +1,71 @@
+package org.swib.blockchain;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 採掘中のブロック<br>
+ * NonceとコインはBlockと違い変更できる。採掘に成功したらtoBlockで変更できないBlockにしてからチェーンにつなげる
+ */
+public class BlockTemplate {
+    /**
+     * Nonce. 採掘に成功したらその値が入る
+     */
+    public Nonce nonce;
+
+    /**
+     * 前のブロックのハッシュ
+     */
+    public final Hash prevHash;
+
+    /**
+     * 採掘を始めた時刻(ミリ秒)。作った時の時刻が入る
+     */
+    public long timestamp = System.currentTimeMillis();
+
+    /**
+     * 難易度(ChainState.getNextDifficulty)
+     */
+    public final int difficulty;
+
+    /**
+     * このブロック生成時に採掘したコインID
+     */
+    public final CoinId coinId;
+
+    /**
+     * このブロックが保証するトランザクション
+     */
+    public final List<Coin> coins = new ArrayList<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param prevHash 前のブロックのハッシュ
+     * @param coin このブロック生成時に採掘したコイン(報酬)
+     * @param difficulty 難易度
+     */
+    public BlockTemplate(Hash prevHash, Coin coin, int difficulty) {
+        this.prevHash = prevHash;
+        this.difficulty = difficulty;
+        this.coinId = coin.id;
+        coins.add(coin);
+    }
+
+    /**
+     * ブロックヘッダ(コインのダイジェストはマークル木の根)。採掘の間はNonce以外は変わらないので、採掘の始めに一度だけ作る
+     *
+     * @return ブロックヘッダ
+     */
+    public BlockHeader getHeader() {
+        return new BlockHeader(prevHash, MerkleTree.root(coins), nonce, timestamp, difficulty);
+    }
+
+    /**
+     * 今のNonceとコインでブロックを作る
+     *
+     * @return ブロック
+     */
+    public Block toBlock() {
+        return new Block(prevHash, coinId, nonce, timestamp, difficulty, coins);
+    }
+}
@@ -0,0 +1,135 @@
+package org.swib.blockchain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 承認済みのチェーン(本線)から外れたブロック(枝)の置き場。ブロックのハッシュで引く<br>
+ * 仕事量で負けたブロックや、巻き戻しで本線から外したブロックを覚えておき、
+ * 後でその枝の続きが届いた時に送り直してもらわずに本線を切り替えられるようにする。<br>
+ * 本線の先端からdepthより深い位置のブロックは忘れ、capacityを超えたら古い位置のものから忘れる
+ */
+public class BlockTree {
+    /**
+     * 枝のブロック
+     */
+    private static class Entry {
+        final Block block;
+        /** チェーンでの位置(0から) */
+        final int height;
+
+        Entry(Block block, int height) {
+            this.block = block;
+            this.height = height;
+        }
+    }
+
+    private final Map<Hash, Entry> blocks = new HashMap<>();
+    private final int depth;
+    private final int capacity;
+
+    /**
+     * コンストラクタ
+     *
+     * @param depth 本線の先端から覚えておく深さ
+     * @param capacity 覚えておくブロックの数の上限
+     */
+    public BlockTree(int depth, int capacity) {
+        this.depth = depth;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 枝のブロックを追加する
+     *
+     * @param height 先頭のブロックのチェーンでの位置
+     * @param branch つながっているブロック(古い順)
+     */
+    public void add(int height, List<Block> branch) {
+        for (int i = 0; i < branch.size(); i++) {
+            Block block = branch.get(i);
+            blocks.put(block.getHash(), new Entry(block, height + i));
+        }
+    }
+
+    /**
+     * ブロックを取り除く(本線に入ったブロックや、検証に失敗したブロック)
+     *
+     * @param branch 取り除くブロック
+     */
+    public void remove(Collection<Block> branch) {
+        for (Block block : branch) {
+            blocks.remove(block.getHash());
+        }
+    }
+
+    /**
+     * 枝にあるブロックかどうか
+     *
+     * @param hash ブロックのハッシュ
+     * @return True:枝にある
+     */
+    public boolean contains(Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    /**
+     * ブロックのチェーンでの位置
+     *
+     * @param hash ブロックのハッシュ
+     * @return 位置(0から)。枝に無ければ-1
+     */
+    public int getHeight(Hash hash) {
+        Entry entry = blocks.get(hash);
+        return entry == null ? -1 : entry.height;
+    }
+
+    /**
+     * ブロックから親をたどれるだけたどった枝(古い順)。先頭のブロックの親は本線にあるか、忘れたブロック
+     *
+     * @param hash 枝の末端のブロックのハッシュ
+     * @return 枝のブロック。枝に無ければ空
+     */
+    public List<Block> branch(Hash hash) {
+        List<Block> branch = new ArrayList<>();
+        Entry entry = blocks.get(hash);
+        while (entry != null) {
+            branch.add(entry.block);
+            entry = entry.block.prevHash == null ? null : blocks.get(entry.block.prevHash);
+        }
+        Collections.reverse(branch);
+        return branch;
+    }
+
+    /**
+     * 本線の先端から深すぎるブロックを忘れる
+     *
+     * @param tipHeight 本線の長さ
+     */
+    public void prune(int tipHeight) {
+        int min = tipHeight - depth;
+        while (true) {
+            Iterator<Entry> it = blocks.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().height < min) {
+                    it.remove();
+                }
+            }
+            if (blocks.size() <= capacity) {
+                return;
+            }
+            min++;
+        }
+    }
+
+    /**
+     * 枝にあるブロックの数
+     */
+    public int size() {
+        return blocks.size();
+    }
+}
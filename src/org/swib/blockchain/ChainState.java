@@ -0,0 +1,375 @@
+package org.swib.blockchain;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * 承認済みのブロックチェーンの状態<br>
+ * 最新のブロックのハッシュ、採掘されたコインID、コインごとの最新のトランザクションを持っている。
+ * 次のブロックの難易度を計算するため、最新のブロックの難易度とタイムスタンプ、見直しの区間の最初のタイムスタンプも持っている。
+ * 新しいブロックがこのチェーンの続きであれば、追加されたブロックだけを検証すればよい(ProofOfWork.validate(List, ChainState))<br>
+ * また、持ち主ごとのコインの索引も持っていて、ブロックの追加と巻き戻しの度にそのブロックの分だけ更新する<br>
+ * 巻き戻しの情報は最新のブロックから決めた数だけ持ち、古いものから捨てる。それより深く巻き戻す場合は呼び出し側がチェーン全体を検証し直す<br>
+ * コインごとに最新のトランザクションが入っているブロックの位置も持っていて、LightNodeに含まれることの証明を返す時に使う<br>
+ * 状態はスナップショットとして書き出せる。形式は下記の通り(本体はCodecで、最新のブロックのハッシュ(空のチェーンは空のリスト)、採掘済みのコインID、持ち主ごとのコインのリスト、
+ * 難易度とタイムスタンプ(Integer, Long, Long)、コインのリストと同じ順のブロックの位置(Integerのリスト))
+ * <ul>
+ * <li>識別子(int) チェーンの長さ(int) 本体のCRC32(long) 本体
+ * </ul>
+ */
+public class ChainState {
+    private static final int SNAPSHOT_MAGIC = 0x53574253;
+    private static final int SNAPSHOT_HEADER_LEN = 4 + 4 + 8;
+    /** 巻き戻しの情報を持つブロックの数(既定) */
+    public static final int DEFAULT_UNDO_DEPTH = 100;
+    /** 壊れたスナップショットの理由(使わなかったことは呼び出し側が出す) */
+    private static final Logger LOGGER = new Logger("ChainState");
+    /**
+     * ブロックの追加を巻き戻すための情報
+     */
+    private static class Undo {
+        /** 追加前の最新のブロックのハッシュ */
+        final Hash prevTipHash;
+        /** 追加前の難易度, タイムスタンプ, 区間の最初のタイムスタンプ */
+        final int prevDifficulty;
+        final long prevTimestamp;
+        final long prevWindowStart;
+        /** このブロックで新たに採掘済みになったコインID。既に採掘済みならnull */
+        final CoinId minedId;
+        /** このブロックで更新したコインの更新前の値(更新した順)。新しいコインはnull */
+        final List<Map.Entry<CoinId, Coin>> replaced = new ArrayList<>();
+        /** 更新したコインの更新前のブロックの位置(replacedと同じ順)。新しいコインはnull */
+        final List<Integer> replacedHeights = new ArrayList<>();
+
+        Undo(Hash prevTipHash, CoinId minedId, int prevDifficulty, long prevTimestamp, long prevWindowStart) {
+            this.prevTipHash = prevTipHash;
+            this.minedId = minedId;
+            this.prevDifficulty = prevDifficulty;
+            this.prevTimestamp = prevTimestamp;
+            this.prevWindowStart = prevWindowStart;
+        }
+    }
+
+    private int height;
+    private Hash tipHash;
+    private int difficulty;
+    private long timestamp;
+    private long windowStart;
+    private final Set<CoinId> mined = new HashSet<>();
+    private final Map<CoinId, Coin> latest = new HashMap<>();
+    private final Map<CoinId, Integer> confirmed = new HashMap<>();
+    private final Map<Key, Map<CoinId, Coin>> owned = new HashMap<>();
+    private final Deque<Undo> undoList = new ArrayDeque<>();
+    private final int maxUndoDepth;
+
+    /**
+     * 空のチェーンの状態を作る。巻き戻しの情報はDEFAULT_UNDO_DEPTHだけ持つ
+     */
+    public ChainState() {
+        this(DEFAULT_UNDO_DEPTH);
+    }
+
+    /**
+     * 空のチェーンの状態を作る
+     *
+     * @param maxUndoDepth 巻き戻しの情報を持つブロックの数
+     */
+    public ChainState(int maxUndoDepth) {
+        this.maxUndoDepth = maxUndoDepth;
+    }
+
+    /**
+     * 承認したブロックを反映する
+     *
+     * @param block ブロック
+     * @param hash ブロックのハッシュ
+     */
+    public void apply(Block block, Hash hash) {
+        Undo undo = new Undo(tipHash, mined.add(block.coinId) ? block.coinId : null, difficulty, timestamp,
+                windowStart);
+        if (height % ProofOfWork.RETARGET_WINDOW == 0) {
+            windowStart = block.timestamp;
+        }
+        int at = height;
+        height++;
+        tipHash = hash;
+        difficulty = block.difficulty;
+        timestamp = block.timestamp;
+        for (Coin coin : block.coins) {
+            Coin prev = latest.put(coin.id, coin);
+            undo.replaced.add(new AbstractMap.SimpleImmutableEntry<>(coin.id, prev));
+            undo.replacedHeights.add(confirmed.put(coin.id, at));
+            if (prev != null) {
+                removeOwner(prev);
+            }
+            addOwner(coin);
+        }
+        undoList.push(undo);
+        if (undoList.size() > maxUndoDepth) {
+            undoList.removeLast();
+        }
+    }
+
+    /**
+     * 最新のブロックの追加を取り消す
+     */
+    public void rollback() {
+        Undo undo = undoList.pop();
+        for (int i = undo.replaced.size() - 1; i >= 0; i--) {
+            Map.Entry<CoinId, Coin> entry = undo.replaced.get(i);
+            Coin coin = latest.remove(entry.getKey());
+            removeOwner(coin);
+            confirmed.remove(entry.getKey());
+            if (entry.getValue() != null) {
+                latest.put(entry.getKey(), entry.getValue());
+                confirmed.put(entry.getKey(), undo.replacedHeights.get(i));
+                addOwner(entry.getValue());
+            }
+        }
+        if (undo.minedId != null) {
+            mined.remove(undo.minedId);
+        }
+        tipHash = undo.prevTipHash;
+        difficulty = undo.prevDifficulty;
+        timestamp = undo.prevTimestamp;
+        windowStart = undo.prevWindowStart;
+        height--;
+    }
+
+    /**
+     * 空のチェーンの状態に戻す
+     */
+    public void clear() {
+        height = 0;
+        tipHash = null;
+        difficulty = 0;
+        timestamp = 0;
+        windowStart = 0;
+        mined.clear();
+        latest.clear();
+        confirmed.clear();
+        owned.clear();
+        undoList.clear();
+    }
+
+    /**
+     * スナップショットを作る。巻き戻しの情報は含まない
+     *
+     * @return スナップショット
+     */
+    public byte[] snapshot() {
+        List<List<Coin>> coins = new ArrayList<>();
+        List<Integer> heights = new ArrayList<>();
+        for (Map<CoinId, Coin> c : owned.values()) {
+            coins.add(new ArrayList<>(c.values()));
+            for (CoinId id : c.keySet()) {
+                heights.add(confirmed.get(id));
+            }
+        }
+        // 空のチェーンのハッシュ(null)は空のリストにする
+        List<Hash> tip = tipHash == null ? Collections.<Hash> emptyList() : Collections.singletonList(tipHash);
+        List<Object> schedule = Arrays.asList(difficulty, timestamp, windowStart);
+        byte[] body = Codec.encode(Arrays.asList(tip, new ArrayList<>(mined), coins, schedule, heights));
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_HEADER_LEN + body.length);
+        buf.putInt(SNAPSHOT_MAGIC);
+        buf.putInt(height);
+        buf.putLong(crc.getValue());
+        buf.put(body);
+        return buf.array();
+    }
+
+    /**
+     * スナップショットから状態を戻す。戻した後はスナップショットを作った時より前には巻き戻せない
+     *
+     * @param data スナップショット
+     * @return False:壊れている(状態は空になる)
+     */
+    @SuppressWarnings("unchecked")
+    public boolean restore(byte[] data) {
+        clear();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            if (buf.getInt() != SNAPSHOT_MAGIC) {
+                return false;
+            }
+            int h = buf.getInt();
+            long checksum = buf.getLong();
+            CRC32 crc = new CRC32();
+            crc.update(data, SNAPSHOT_HEADER_LEN, data.length - SNAPSHOT_HEADER_LEN);
+            if (crc.getValue() != checksum) {
+                return false;
+            }
+            List<Object> body = (List<Object>) Codec.decode(Arrays.copyOfRange(data, SNAPSHOT_HEADER_LEN, data.length));
+            if (body == null) {
+                return false;
+            }
+            height = h;
+            List<Hash> tip = (List<Hash>) body.get(0);
+            tipHash = tip.isEmpty() ? null : tip.get(0);
+            for (Object id : (List<Object>) body.get(1)) {
+                mined.add((CoinId) id);
+            }
+            List<Object> schedule = (List<Object>) body.get(3);
+            difficulty = (Integer) schedule.get(0);
+            timestamp = (Long) schedule.get(1);
+            windowStart = (Long) schedule.get(2);
+            List<Integer> heights = (List<Integer>) body.get(4);
+            int i = 0;
+            for (List<Coin> coins : (List<List<Coin>>) body.get(2)) {
+                for (Coin coin : coins) {
+                    latest.put(coin.id, coin);
+                    confirmed.put(coin.id, heights.get(i++));
+                    addOwner(coin);
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException | ClassCastException | IndexOutOfBoundsException e) {
+            LOGGER.debug("Broken snapshot({})", e);
+            clear();
+            return false;
+        }
+    }
+
+    /**
+     * 巻き戻せるブロックの数(スナップショットから戻した場合はそれ以降に追加した数。最大で作った時に指定した数)
+     */
+    public int getUndoDepth() {
+        return undoList.size();
+    }
+
+    /**
+     * チェーンの長さ
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 次のブロックの難易度
+     */
+    public int getNextDifficulty() {
+        return ProofOfWork.nextDifficulty(height, difficulty, timestamp, windowStart);
+    }
+
+    /**
+     * 最新のブロックの難易度。空のチェーンでは0
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * 最新のブロックのタイムスタンプ。空のチェーンでは0
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * 最新のブロックを含む見直しの区間の最初のブロックのタイムスタンプ
+     */
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    /**
+     * 最新のブロックのハッシュ。空のチェーンではnull
+     */
+    public Hash getTipHash() {
+        return tipHash;
+    }
+
+    /**
+     * コインが採掘済みかどうか
+     *
+     * @param coinId コインID
+     * @return True:採掘済み
+     */
+    public boolean isMined(CoinId coinId) {
+        return mined.contains(coinId);
+    }
+
+    /**
+     * コインの最新のトランザクション
+     *
+     * @param coinId コインID
+     * @return 最新のコイン。チェーンに無ければnull
+     */
+    public Coin getLatest(CoinId coinId) {
+        return latest.get(coinId);
+    }
+
+    /**
+     * コインの最新のトランザクションが入っているブロックの位置
+     *
+     * @param coinId コインID
+     * @return ブロックの位置(0から)。チェーンに無ければ-1
+     */
+    public int getConfirmedHeight(CoinId coinId) {
+        Integer at = confirmed.get(coinId);
+        return at == null ? -1 : at;
+    }
+
+    /**
+     * 持っているコインの数
+     *
+     * @param publicKey 持ち主の公開鍵
+     * @return コインの数
+     */
+    public int getBalance(Key publicKey) {
+        Map<CoinId, Coin> coins = owned.get(publicKey);
+        return coins == null ? 0 : coins.size();
+    }
+
+    /**
+     * 持っているコイン(受け取った順)
+     *
+     * @param publicKey 持ち主の公開鍵
+     * @return コインの最新のトランザクション
+     */
+    public Collection<Coin> getCoins(Key publicKey) {
+        Map<CoinId, Coin> coins = owned.get(publicKey);
+        return coins == null ? Collections.<Coin> emptyList() : Collections.unmodifiableCollection(coins.values());
+    }
+
+    /**
+     * コインを持っている人全員
+     *
+     * @return 持ち主の公開鍵
+     */
+    public Set<Key> getOwners() {
+        return Collections.unmodifiableSet(owned.keySet());
+    }
+
+    private void addOwner(Coin coin) {
+        Map<CoinId, Coin> coins = owned.get(coin.tx.receiverPublicKey);
+        if (coins == null) {
+            coins = new LinkedHashMap<>();
+            owned.put(coin.tx.receiverPublicKey, coins);
+        }
+        coins.put(coin.id, coin);
+    }
+
+    private void removeOwner(Coin coin) {
+        Map<CoinId, Coin> coins = owned.get(coin.tx.receiverPublicKey);
+        coins.remove(coin.id);
+        if (coins.isEmpty()) {
+            owned.remove(coin.tx.receiverPublicKey);
+        }
+    }
+}
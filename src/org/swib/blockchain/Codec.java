@@ -0,0 +1,451 @@
+package org.swib.blockchain;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block, BlockHeader, Coin, Coin.Transaction, String, Integer, Long, 固定長の値(FixedBytes)のバイナリ形式<br>
+ * Javaのシリアライズと違いクラス情報を含まず、同じオブジェクトからは常に同じバイト列ができる(ハッシュや署名に使える)。<br>
+ * フォーマットは下記の通り。数値はビッグエンディアン
+ * <ul>
+ * <li>全体: バージョン(1byte) 型(1byte) 本体
+ * <li>文字列: 長さ(int, nullは-1) UTF-8のバイト列
+ * <li>固定長の値: 有無(1byte, nullは0) バイト列(型ごとに決まった長さ)
+ * <li>Transaction: prevHash(Hash) receiverPublicKey(Key)
+ * <li>Coin: id(CoinId) senderSign(Signature) Transaction
+ * <li>Block: prevHash(Hash) nonce(Nonce) タイムスタンプ(long) 難易度(int) coinId(CoinId) コイン数(int) Coin...
+ * <li>String: 文字列
+ * <li>Integer: int
+ * <li>Long: long
+ * <li>Hash, Key, CoinId, Nonce, Signature: バイト列(nullは書けない)
+ * <li>BlockHeader: BlockHeader.toBytesのバイト列(固定長)
+ * <li>List: 要素数(int) (型(1byte) 本体)...
+ * </ul>
+ * 読み込むListの入れ子はMAX_DEPTHまで(深く入れ子にしただけの小さなデータでスタックを使い切らないように)
+ */
+public class Codec {
+    /** フォーマットのバージョン。互換性のない変更をしたら上げる */
+    public static final byte VERSION = 5;
+
+    private static final byte TYPE_TRANSACTION = 1;
+    private static final byte TYPE_COIN = 2;
+    private static final byte TYPE_BLOCK = 3;
+    private static final byte TYPE_LIST = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_HASH = 6;
+    private static final byte TYPE_KEY = 7;
+    private static final byte TYPE_COIN_ID = 8;
+    private static final byte TYPE_NONCE = 9;
+    private static final byte TYPE_SIGNATURE = 10;
+    private static final byte TYPE_HEADER = 11;
+    private static final byte TYPE_INT = 12;
+    private static final byte TYPE_LONG = 13;
+
+    /** 読み込むListの入れ子の最大の深さ(一番深いNode.requestCoinsの応答でも3) */
+    public static final int MAX_DEPTH = 16;
+
+    /** 壊れたバイナリの理由(他のノードから何度でも送られてくるので、DEBUGでだけ出す) */
+    private static final Logger LOGGER = new Logger("Codec");
+
+    /**
+     * オブジェクトをバイナリにする
+     *
+     * @param obj Block, BlockHeader, Coin, Coin.Transaction, String, Integer, Long, FixedBytes またはそれらのList
+     * @return バイナリ
+     */
+    public static byte[] encode(Object obj) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + sizeOf(obj));
+        buf.put(VERSION);
+        write(buf, obj);
+        return buf.array();
+    }
+
+    /**
+     * バイナリをオブジェクトに戻す
+     *
+     * @param input バイナリ
+     * @return オブジェクト。形式が正しくない場合はnull
+     */
+    public static Object decode(byte[] input) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(input);
+            byte version = buf.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown codec version: " + version);
+            }
+            Object obj = read(buf);
+            if (buf.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes: " + buf.remaining());
+            }
+            return obj;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.debug("Broken data({})", e);
+            return null;
+        }
+    }
+
+    /**
+     * 型付きでオブジェクトを書き込む
+     *
+     * @param buf 書き込み先
+     * @param obj オブジェクト
+     */
+    public static void write(ByteBuffer buf, Object obj) {
+        if (obj instanceof Coin.Transaction) {
+            buf.put(TYPE_TRANSACTION);
+            writeTransaction(buf, (Coin.Transaction) obj);
+        } else if (obj instanceof Coin) {
+            buf.put(TYPE_COIN);
+            writeCoin(buf, (Coin) obj);
+        } else if (obj instanceof Block) {
+            buf.put(TYPE_BLOCK);
+            writeBlock(buf, (Block) obj);
+        } else if (obj instanceof BlockHeader) {
+            buf.put(TYPE_HEADER);
+            buf.put(((BlockHeader) obj).toBytes());
+        } else if (obj instanceof String) {
+            buf.put(TYPE_STRING);
+            writeString(buf, (String) obj);
+        } else if (obj instanceof Integer) {
+            buf.put(TYPE_INT);
+            buf.putInt((Integer) obj);
+        } else if (obj instanceof Long) {
+            buf.put(TYPE_LONG);
+            buf.putLong((Long) obj);
+        } else if (obj instanceof FixedBytes) {
+            buf.put(typeOf((FixedBytes) obj));
+            ((FixedBytes) obj).writeTo(buf);
+        } else if (obj instanceof List) {
+            buf.put(TYPE_LIST);
+            List<?> list = (List<?>) obj;
+            buf.putInt(list.size());
+            for (Object o : list) {
+                write(buf, o);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported type: " + obj);
+        }
+    }
+
+    /**
+     * 型付きで書き込まれたオブジェクトを読み込む
+     *
+     * @param buf 読み込み元
+     * @return オブジェクト
+     * @throws IllegalArgumentException 形式が正しくないか、Listの入れ子がMAX_DEPTHより深い
+     */
+    public static Object read(ByteBuffer buf) {
+        return read(buf, MAX_DEPTH);
+    }
+
+    private static Object read(ByteBuffer buf, int depth) {
+        byte type = buf.get();
+        switch (type) {
+        case TYPE_TRANSACTION:
+            return readTransaction(buf);
+        case TYPE_COIN:
+            return readCoin(buf);
+        case TYPE_BLOCK:
+            return readBlock(buf);
+        case TYPE_STRING:
+            return readString(buf);
+        case TYPE_INT:
+            return buf.getInt();
+        case TYPE_LONG:
+            return buf.getLong();
+        case TYPE_HASH:
+            return new Hash(readBytes(buf, Hash.LENGTH));
+        case TYPE_KEY:
+            return new Key(readBytes(buf, Key.LENGTH));
+        case TYPE_COIN_ID:
+            return new CoinId(readBytes(buf, CoinId.LENGTH));
+        case TYPE_NONCE:
+            return new Nonce(readBytes(buf, Nonce.LENGTH));
+        case TYPE_SIGNATURE:
+            return new Signature(readBytes(buf, Signature.LENGTH));
+        case TYPE_HEADER:
+            return BlockHeader.fromBytes(readBytes(buf, BlockHeader.SIZE));
+        case TYPE_LIST:
+            if (depth <= 0) {
+                throw new IllegalArgumentException("Too deep list");
+            }
+            int n = readCount(buf);
+            List<Object> list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                list.add(read(buf, depth - 1));
+            }
+            return list;
+        default:
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+
+    /**
+     * 型付きで書き込んだ時のバイト数(バージョンは含まない)
+     *
+     * @param obj オブジェクト
+     * @return バイト数
+     */
+    public static int sizeOf(Object obj) {
+        if (obj instanceof Coin.Transaction) {
+            return 1 + sizeOf((Coin.Transaction) obj);
+        } else if (obj instanceof Coin) {
+            return 1 + sizeOf((Coin) obj);
+        } else if (obj instanceof Block) {
+            return 1 + sizeOf((Block) obj);
+        } else if (obj instanceof BlockHeader) {
+            return 1 + BlockHeader.SIZE;
+        } else if (obj instanceof String) {
+            return 1 + sizeOf((String) obj);
+        } else if (obj instanceof Integer) {
+            return 1 + 4;
+        } else if (obj instanceof Long) {
+            return 1 + 8;
+        } else if (obj instanceof FixedBytes) {
+            return 1 + ((FixedBytes) obj).length();
+        } else if (obj instanceof List) {
+            int size = 1 + 4;
+            for (Object o : (List<?>) obj) {
+                size += sizeOf(o);
+            }
+            return size;
+        } else {
+            throw new IllegalArgumentException("Unsupported type: " + obj);
+        }
+    }
+
+    /**
+     * ブロックのリストのバイナリを、コインを読まずに走査する(受け取ったチェーンの最初の検査用)
+     *
+     * @param input List&lt;Block&gt;のバイナリ
+     * @return 各ブロックの要約。形式が正しくない場合はnull
+     */
+    public static List<BlockSummary> scanBlocks(byte[] input) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(input);
+            byte version = buf.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown codec version: " + version);
+            }
+            byte type = buf.get();
+            if (type != TYPE_LIST) {
+                throw new IllegalArgumentException("Not a list: " + type);
+            }
+            int n = readCount(buf);
+            List<BlockSummary> list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                type = buf.get();
+                if (type != TYPE_BLOCK) {
+                    throw new IllegalArgumentException("Not a block: " + type);
+                }
+                int offset = buf.position();
+                byte[] prevHash = readFixed(buf, Hash.LENGTH);
+                skipFixed(buf, Nonce.LENGTH);
+                long timestamp = buf.getLong();
+                int difficulty = buf.getInt();
+                skipFixed(buf, CoinId.LENGTH);
+                int coins = readCount(buf);
+                for (int j = 0; j < coins; j++) {
+                    skipFixed(buf, CoinId.LENGTH);
+                    skipFixed(buf, Signature.LENGTH);
+                    skipFixed(buf, Hash.LENGTH);
+                    skipFixed(buf, Key.LENGTH);
+                }
+                list.add(new BlockSummary(prevHash == null ? null : new Hash(prevHash), timestamp, difficulty, coins,
+                        offset, buf.position() - offset));
+            }
+            if (buf.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes: " + buf.remaining());
+            }
+            return list;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.debug("Broken blocks({})", e);
+            return null;
+        }
+    }
+
+    /**
+     * 走査したバイナリから1つのブロックだけを読む
+     *
+     * @param input List&lt;Block&gt;のバイナリ(scanBlocksに渡したもの)
+     * @param summary 読むブロックの要約
+     * @return ブロック。形式が正しくない場合はnull
+     */
+    public static Block decodeBlock(byte[] input, BlockSummary summary) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(input, summary.offset, summary.length);
+            Block block = readBlock(buf);
+            if (buf.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes: " + buf.remaining());
+            }
+            return block;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.debug("Broken block({})", e);
+            return null;
+        }
+    }
+
+    public static void writeTransaction(ByteBuffer buf, Coin.Transaction tx) {
+        writeFixed(buf, tx.prevHash);
+        writeFixed(buf, tx.receiverPublicKey);
+    }
+
+    public static Coin.Transaction readTransaction(ByteBuffer buf) {
+        byte[] prevHash = readFixed(buf, Hash.LENGTH);
+        byte[] receiverPublicKey = readFixed(buf, Key.LENGTH);
+        return new Coin.Transaction(prevHash == null ? null : new Hash(prevHash),
+                receiverPublicKey == null ? null : new Key(receiverPublicKey));
+    }
+
+    public static void writeCoin(ByteBuffer buf, Coin coin) {
+        writeFixed(buf, coin.id);
+        writeFixed(buf, coin.senderSign);
+        writeTransaction(buf, coin.tx);
+    }
+
+    public static Coin readCoin(ByteBuffer buf) {
+        byte[] id = readFixed(buf, CoinId.LENGTH);
+        byte[] senderSign = readFixed(buf, Signature.LENGTH);
+        Coin.Transaction tx = readTransaction(buf);
+        return new Coin(id == null ? null : new CoinId(id), tx, senderSign == null ? null : new Signature(senderSign));
+    }
+
+    public static void writeBlock(ByteBuffer buf, Block block) {
+        writeFixed(buf, block.prevHash);
+        writeFixed(buf, block.nonce);
+        buf.putLong(block.timestamp);
+        buf.putInt(block.difficulty);
+        writeFixed(buf, block.coinId);
+        buf.putInt(block.coins.size());
+        for (Coin coin : block.coins) {
+            writeCoin(buf, coin);
+        }
+    }
+
+    public static Block readBlock(ByteBuffer buf) {
+        byte[] prevHash = readFixed(buf, Hash.LENGTH);
+        byte[] nonce = readFixed(buf, Nonce.LENGTH);
+        long timestamp = buf.getLong();
+        int difficulty = buf.getInt();
+        byte[] coinId = readFixed(buf, CoinId.LENGTH);
+        int n = readCount(buf);
+        List<Coin> coins = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            coins.add(readCoin(buf));
+        }
+        return new Block(prevHash == null ? null : new Hash(prevHash), coinId == null ? null : new CoinId(coinId),
+                nonce == null ? null : new Nonce(nonce), timestamp, difficulty, coins);
+    }
+
+    private static int sizeOf(Coin.Transaction tx) {
+        return sizeOf(tx.prevHash) + sizeOf(tx.receiverPublicKey);
+    }
+
+    private static int sizeOf(Coin coin) {
+        return sizeOf(coin.id) + sizeOf(coin.senderSign) + sizeOf(coin.tx);
+    }
+
+    private static int sizeOf(Block block) {
+        int size = sizeOf(block.prevHash) + sizeOf(block.nonce) + 8 + 4 + sizeOf(block.coinId) + 4;
+        for (Coin coin : block.coins) {
+            size += sizeOf(coin);
+        }
+        return size;
+    }
+
+    private static int sizeOf(FixedBytes value) {
+        return 1 + (value == null ? 0 : value.length());
+    }
+
+    private static int sizeOf(String str) {
+        return 4 + (str == null ? 0 : str.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void writeString(ByteBuffer buf, String str) {
+        if (str == null) {
+            buf.putInt(-1);
+        } else {
+            byte[] b = str.getBytes(StandardCharsets.UTF_8);
+            buf.putInt(b.length);
+            buf.put(b);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFixed(ByteBuffer buf, FixedBytes value) {
+        if (value == null) {
+            buf.put((byte) 0);
+        } else {
+            buf.put((byte) 1);
+            value.writeTo(buf);
+        }
+    }
+
+    private static byte[] readFixed(ByteBuffer buf, int length) {
+        byte present = buf.get();
+        if (present == 0) {
+            return null;
+        }
+        if (present != 1) {
+            throw new IllegalArgumentException("Illegal flag: " + present);
+        }
+        return readBytes(buf, length);
+    }
+
+    private static void skipFixed(ByteBuffer buf, int length) {
+        byte present = buf.get();
+        if (present == 0) {
+            return;
+        }
+        if (present != 1) {
+            throw new IllegalArgumentException("Illegal flag: " + present);
+        }
+        if (length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buf.position(buf.position() + length);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int length) {
+        byte[] b = new byte[length];
+        buf.get(b);
+        return b;
+    }
+
+    private static byte typeOf(FixedBytes value) {
+        if (value instanceof Hash) {
+            return TYPE_HASH;
+        } else if (value instanceof Key) {
+            return TYPE_KEY;
+        } else if (value instanceof CoinId) {
+            return TYPE_COIN_ID;
+        } else if (value instanceof Nonce) {
+            return TYPE_NONCE;
+        } else if (value instanceof Signature) {
+            return TYPE_SIGNATURE;
+        }
+        throw new IllegalArgumentException("Unsupported type: " + value.getClass());
+    }
+
+    private static int readCount(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0 || n > buf.remaining()) {
+            throw new IllegalArgumentException("Illegal count: " + n);
+        }
+        return n;
+    }
+}
@@ -1,21 +1,20 @@
 package org.swib.blockchain;
-import java.io.Serializable;
 
 /**
  * コインクラス
  */
-public class Coin implements Serializable {
+public class Coin {
 
     /**
      * コインの取引を証明する単位
      */
-    public static class Transaction implements Serializable {
-        /** ひとつ前のこのコインのトランザクションのハッシュ。最初に採掘された時は空文字 */
-        public String prevHash;
+    public static class Transaction {
+        /** ひとつ前のこのコインのトランザクションのハッシュ。最初に採掘された時はnull */
+        public final Hash prevHash;
         /** このトランザクションによってコインを受け取った人のPublic key */
-        public String receiverPublicKey;
+        public final Key receiverPublicKey;
 
-        public Transaction(String prevHash, String receiverPublicKey) {
+        public Transaction(Hash prevHash, Key receiverPublicKey) {
             this.prevHash = prevHash;
             this.receiverPublicKey = receiverPublicKey;
         }
@@ -24,9 +23,11 @@ public class Coin implements Serializable {
     /** このコインのトランザクション(同じIDのトランザクションは過去にも大量にある)   */
     public final Transaction tx;
     /** このコインのID */
-    public final String id;
-    /** このコインのトランザクションの送り主によるtxの署名 */
-    public final String senderSign;
+    public final CoinId id;
+    /** このコインのトランザクションの送り主によるtxの署名。採掘された時はnull */
+    public final Signature senderSign;
+
+    private volatile Hash hash;
 
     /**
      * 既存のコインを別の人に送るときに使うコンストラクタ
@@ -34,7 +35,7 @@ public class Coin implements Serializable {
      * @param tx 新しいトランザクション(新しい送り主とひとつ前のトランザクションのハッシュを持つ)
      * @param senderSign 自分の署名(自分が送ったということを証明する)
      */
-    public Coin(String id, Transaction tx, String senderSign) {
+    public Coin(CoinId id, Transaction tx, Signature senderSign) {
         this.tx = tx;
         this.senderSign = senderSign;
         this.id = id;
@@ -44,14 +45,28 @@ public class Coin implements Serializable {
      * コインを採掘した時に使うコンストラクタ。ただし、IDがBlock.coinIdに記録されていないものはvalidationで無効になるよ
      * @param publicKey 自分のPublic Key(Block生成の報酬なので、自分自身が送り主)
      */
-    public Coin(String publicKey) {
-        this.id = Common.encodeHex(Common.getRand(20));
-        this.tx = new Transaction("", publicKey);
-        this.senderSign = "";
+    public Coin(Key publicKey) {
+        this.id = CoinId.random();
+        this.tx = new Transaction(null, publicKey);
+        this.senderSign = null;
+    }
+
+    /**
+     * このコインのハッシュ(次のトランザクションのprevHashになる)。作った後は変更できないので、一度だけ計算して覚えておく
+     * 
+     * @return ハッシュ
+     */
+    public Hash getHash() {
+        Hash h = hash;
+        if (h == null) {
+            h = DigitalSign.hash(this);
+            hash = h;
+        }
+        return h;
     }
 
     public String toString() {
         return String.format("{Hash: %s, Sign: %s, Receive: %s, PrevHash: %s}",
-                DigitalSign.hash(this), senderSign, tx.receiverPublicKey, tx.prevHash);
+                getHash(), senderSign, tx.receiverPublicKey, tx.prevHash);
     }
 }
@@ -0,0 +1,33 @@
+package org.swib.blockchain;
+
+/**
+ * コインID
+ */
+public final class CoinId extends FixedBytes {
+    /** バイト数 */
+    public static final int LENGTH = 20;
+
+    public CoinId(byte[] value) {
+        super(value, LENGTH);
+    }
+
+    /**
+     * 16進文字列から作る(コマンドラインや設定ファイル用)
+     *
+     * @param hex 16進文字列
+     * @return 値
+     * @throws IllegalArgumentException 16進文字列でないか、長さが違う
+     */
+    public static CoinId fromHex(String hex) {
+        return new CoinId(Common.decodeHex(hex));
+    }
+
+    /**
+     * 新しいコインIDを乱数で作る
+     *
+     * @return コインID
+     */
+    public static CoinId random() {
+        return new CoinId(Common.getRand(LENGTH));
+    }
+}
@@ -1,9 +1,4 @@
 package org.swib.blockchain;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -67,41 +62,23 @@ public class Common {
     }
 
     /**
-     * オブジェクトのシリアライズ
+     * オブジェクトのシリアライズ(形式はCodecを参照)
      * 
      * @param obj オブジェクト
      * @return シリアライズされたバイナリ
      */
     public static byte[] serialize(Object obj) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos;
-        try {
-            oos = new ObjectOutputStream(baos);
-            oos.writeObject(obj);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return Codec.encode(obj);
     }
 
     /**
      * オブジェクトのデシリアライズ
      * 
      * @param buf シリアライズされたバイナリ
-     * @return オブジェクト
+     * @return オブジェクト。形式が正しくない場合はnull
      */
     public static Object deserialize(byte[] buf) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(buf);
-        ObjectInputStream ois;
-        Object obj = null;
-        try {
-            ois = new ObjectInputStream(bais);
-            obj = ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        }
-        return obj;
+        return Codec.decode(buf);
     }
 
     /**
@@ -9,8 +9,6 @@ import java.util.Arrays;
  */
 public class DigitalSign {
 
-    private static int KEY_LEN = 10;
-
     /**
      * オブジェクトの署名を作る
      * 
@@ -18,9 +16,8 @@ public class DigitalSign {
      * @param privateKey 署名する秘密鍵
      * @return 署名
      */
-    public static String sign(Object obj, String privateKey) {
-        byte[] sign = sign(Common.serialize(obj), Common.decodeHex(privateKey));
-        return Common.encodeHex(sign);
+    public static Signature sign(Object obj, Key privateKey) {
+        return new Signature(sign(Common.serialize(obj), privateKey.array()));
     }
 
     /**
@@ -31,8 +28,11 @@ public class DigitalSign {
      * @param publicKey 公開鍵
      * @return True:はい False:いいえ
      */
-    public static boolean validate(Object obj, String sign, String publicKey) {
-        return validate(Common.serialize(obj), Common.decodeHex(sign), Common.decodeHex(publicKey));
+    public static boolean validate(Object obj, Signature sign, Key publicKey) {
+        if (sign == null || publicKey == null) {
+            return false;
+        }
+        return validate(Common.serialize(obj), sign.array(), publicKey.array());
     }
 
     /**
@@ -42,8 +42,8 @@ public class DigitalSign {
      * @param hash ハッシュ
      * @return True:はい False:いいえ
      */
-    public static boolean hashCheck(Object obj, String hash) {
-        return Common.valid(obj, Common.decodeHex(hash));
+    public static boolean hashCheck(Object obj, Hash hash) {
+        return Common.valid(obj, hash.array());
     }
 
     /**
@@ -52,8 +52,8 @@ public class DigitalSign {
      * @param obj オブジェクト
      * @return ハッシュ
      */
-    public static String hash(Object obj) {
-        return Common.encodeHex(Common.hash(obj));
+    public static Hash hash(Object obj) {
+        return new Hash(Common.hash(obj));
     }
 
     /**
@@ -61,11 +61,9 @@ public class DigitalSign {
      * 
      * @return {公開鍵, 秘密鍵}
      */
-    public static String[] generateKey() {
-        byte[] publicKey = Common.getRand(KEY_LEN);
-        String key1 = Common.encodeHex(publicKey);
-        String key2 = Common.encodeHex(getPrivateKey(publicKey));
-        return new String[] { key1, key2 };
+    public static Key[] generateKey() {
+        byte[] publicKey = Common.getRand(Key.LENGTH);
+        return new Key[] { new Key(publicKey), new Key(getPrivateKey(publicKey)) };
     }
 
     private static byte[] sign(byte[] input, byte[] privateKey) {
@@ -0,0 +1,108 @@
+package org.swib.blockchain;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 固定長のバイト列の値(ハッシュ、鍵、コインID、Nonce、署名)<br>
+ * 作った後は変更できないので、hashCodeは最初に一度だけ計算して覚えておく。
+ * Mapのキーや比較にはバイト列をそのまま使い、16進文字列はtoStringとfromHex(ログやコマンドライン)でだけ使う。
+ * 型が違えば中身が同じでも等しくない
+ */
+public abstract class FixedBytes implements Comparable<FixedBytes> {
+    private final byte[] value;
+    private final int hash;
+
+    /**
+     * コンストラクタ
+     *
+     * @param value バイト列(コピーする)
+     * @param length 長さ
+     */
+    protected FixedBytes(byte[] value, int length) {
+        if (value.length != length) {
+            throw new IllegalArgumentException("Illegal length: " + value.length + " (expected " + length + ")");
+        }
+        this.value = value.clone();
+        this.hash = Arrays.hashCode(this.value);
+    }
+
+    /**
+     * バイト数
+     */
+    public int length() {
+        return value.length;
+    }
+
+    /**
+     * バイト列(コピー)
+     */
+    public byte[] toBytes() {
+        return value.clone();
+    }
+
+    /**
+     * バイト列を書き込む
+     *
+     * @param buf 書き込み先
+     */
+    public void writeTo(ByteBuffer buf) {
+        buf.put(value);
+    }
+
+    /**
+     * バイト列をコピーする
+     *
+     * @param dest コピー先
+     * @param offset コピー先の位置
+     */
+    public void copyTo(byte[] dest, int offset) {
+        System.arraycopy(value, 0, dest, offset, value.length);
+    }
+
+    /**
+     * 中のバイト列(コピーしないので変更してはいけない)
+     */
+    byte[] array() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || obj.getClass() != getClass()) {
+            return false;
+        }
+        FixedBytes other = (FixedBytes) obj;
+        return hash == other.hash && Arrays.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * バイト列を符号なしで先頭から比べる
+     */
+    @Override
+    public int compareTo(FixedBytes other) {
+        int n = Math.min(value.length, other.value.length);
+        for (int i = 0; i < n; i++) {
+            int c = (value[i] & 0xff) - (other.value[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return value.length - other.value.length;
+    }
+
+    /**
+     * 16進文字列
+     */
+    @Override
+    public String toString() {
+        return Common.encodeHex(value);
+    }
+}
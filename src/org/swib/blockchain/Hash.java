@@ -0,0 +1,24 @@
+package org.swib.blockchain;
+
+/**
+ * SHA-256のハッシュ(ブロック、コイン、マークル木)
+ */
+public final class Hash extends FixedBytes {
+    /** バイト数 */
+    public static final int LENGTH = 32;
+
+    public Hash(byte[] value) {
+        super(value, LENGTH);
+    }
+
+    /**
+     * 16進文字列から作る(コマンドラインや設定ファイル用)
+     *
+     * @param hex 16進文字列
+     * @return 値
+     * @throws IllegalArgumentException 16進文字列でないか、長さが違う
+     */
+    public static Hash fromHex(String hex) {
+        return new Hash(Common.decodeHex(hex));
+    }
+}
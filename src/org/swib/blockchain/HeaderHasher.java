@@ -0,0 +1,135 @@
+package org.swib.blockchain;
+
+/**
+ * 採掘用のブロックヘッダのハッシュ計算<br>
+ * ヘッダの先頭64バイト(前のブロックのハッシュとコインのダイジェスト)はNonceを変えても同じなので、
+ * そこまでのSHA-256の内部状態(midstate)を最初に一度だけ計算しておく。
+ * 各試行ではNonceを書き換えた最後の1ブロックだけを圧縮する。バッファは全て使い回すので試行中のメモリ確保はない
+ */
+class HeaderHasher {
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    private static final int BLOCK_LEN = 64;
+
+    private final int[] midstate = new int[8];
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] tail = new byte[BLOCK_LEN];
+    private final byte[] hash = new byte[BlockHeader.HASH_LEN];
+
+    /**
+     * コンストラクタ
+     *
+     * @param header ヘッダのバイト列(BlockHeader.toBytes())
+     */
+    HeaderHasher(byte[] header) {
+        System.arraycopy(IV, 0, midstate, 0, 8);
+        compress(midstate, header, 0);
+
+        int rest = header.length - BLOCK_LEN;
+        System.arraycopy(header, BLOCK_LEN, tail, 0, rest);
+        tail[rest] = (byte) 0x80;
+        long bits = header.length * 8L;
+        for (int i = 0; i < 8; i++) {
+            tail[BLOCK_LEN - 1 - i] = (byte) (bits >>> (8 * i));
+        }
+    }
+
+    /**
+     * Nonceを書き換える
+     *
+     * @param nonce Nonce(BlockHeader.NONCE_LEN バイト)
+     */
+    void setNonce(byte[] nonce) {
+        System.arraycopy(nonce, 0, tail, 0, BlockHeader.NONCE_LEN);
+    }
+
+    /**
+     * Nonceの1バイトを書き換える
+     *
+     * @param index Nonce内の位置
+     * @param value 値
+     */
+    void setNonce(int index, byte value) {
+        tail[index] = value;
+    }
+
+    /**
+     * 今のNonceのコピー
+     *
+     * @return Nonce
+     */
+    byte[] getNonce() {
+        byte[] nonce = new byte[BlockHeader.NONCE_LEN];
+        System.arraycopy(tail, 0, nonce, 0, nonce.length);
+        return nonce;
+    }
+
+    /**
+     * 今のNonceでのヘッダのハッシュ。返した配列は次の呼び出しで上書きされる
+     *
+     * @return ハッシュ
+     */
+    byte[] hash() {
+        System.arraycopy(midstate, 0, state, 0, 8);
+        compress(state, tail, 0);
+        for (int i = 0; i < 8; i++) {
+            int v = state[i];
+            hash[i * 4] = (byte) (v >>> 24);
+            hash[i * 4 + 1] = (byte) (v >>> 16);
+            hash[i * 4 + 2] = (byte) (v >>> 8);
+            hash[i * 4 + 3] = (byte) v;
+        }
+        return hash;
+    }
+
+    private void compress(int[] h, byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int p = offset + i * 4;
+            w[i] = (block[p] & 0xff) << 24 | (block[p + 1] & 0xff) << 16 | (block[p + 2] & 0xff) << 8
+                    | (block[p + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = hh + s1 + ch + K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+}
@@ -0,0 +1,118 @@
+package org.swib.blockchain;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 値の分布(レイテンシやバイト数)<br>
+ * バケットの上限は1, 2, 4, 8, ...と倍々で、値はそれ以下の最小のバケットに数える。
+ * 記録はロックを取らないので、どのスレッドからでも呼べる
+ */
+public class Histogram {
+    private static final int BUCKETS = 48;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 値を記録する
+     *
+     * @param value 値(0以上)
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        int bucket = value <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        updateMax(value);
+    }
+
+    /**
+     * 他のヒストグラムの記録を足す(複数のノードの分布をまとめる)
+     *
+     * @param other 足すヒストグラム
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.addAndGet(i, other.counts.get(i));
+        }
+        count.addAndGet(other.getCount());
+        sum.addAndGet(other.getSum());
+        updateMax(other.getMax());
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * パーセンタイル(その値が入っているバケットの上限)
+     *
+     * @param p 0-100
+     * @return 値。記録が無ければ0
+     */
+    public long getPercentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * p / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(getUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * バケットの数
+     */
+    public int getBuckets() {
+        return BUCKETS;
+    }
+
+    /**
+     * バケットの上限
+     *
+     * @param bucket バケット
+     * @return 上限(最後のバケットはLong.MAX_VALUE)
+     */
+    public long getUpperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * バケットに入っている数
+     *
+     * @param bucket バケット
+     * @return 数
+     */
+    public long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    private void updateMax(long value) {
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // None
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.swib.blockchain;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * ノードの受信箱<br>
+ * 他のノードからのメッセージはここに入れるだけで、送り主はすぐに戻る。
+ * 受信箱ごとにメッセージは1つずつ順番に処理されるが、処理するスレッドは全ノードで共有している少数のスレッドである。<br>
+ * 受信箱がいっぱいの場合は送り主を待たせずにメッセージを捨てて数える(処理するスレッドは共有なので、遅いノードがネットワーク全体を止めないように)。<br>
+ * メッセージの処理の中で他のノードの応答を待つ場合は、postOnCompleteで応答が来てから続きを受信箱に入れる
+ */
+public class Inbox {
+    private static final int BATCH = 32;
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "inbox");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /** 全受信箱で未処理または処理中のメッセージ数 */
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+    private static final Object IDLE = new Object();
+
+    private final BlockingQueue<Runnable> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     *
+     * @param capacity 受信箱に入るメッセージ数
+     */
+    public Inbox(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * メッセージを受信箱に入れる
+     *
+     * @param task メッセージの処理
+     * @return False:受信箱がいっぱいで捨てた
+     */
+    public boolean post(Runnable task) {
+        ACTIVE.incrementAndGet();
+        if (!queue.offer(task)) {
+            dropped.incrementAndGet();
+            done();
+            return false;
+        }
+        received.incrementAndGet();
+        schedule();
+        return true;
+    }
+
+    /**
+     * 結果を返すメッセージを受信箱に入れる
+     *
+     * @param task メッセージの処理
+     * @return 処理結果。受信箱がいっぱいで捨てた場合は例外で完了する
+     */
+    public <T> CompletableFuture<T> call(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        boolean ok = post(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        if (!ok) {
+            future.completeExceptionally(new IllegalStateException("Inbox is full"));
+        }
+        return future;
+    }
+
+    /**
+     * 問い合わせの応答を待たずに戻り、完了したら結果の処理を受信箱に入れる。
+     * 応答を待つ間も処理中のメッセージとして数える(awaitIdleが問い合わせの途中で戻らないように)
+     *
+     * @param future 問い合わせ
+     * @param task 結果の処理。受信箱がいっぱいの場合は捨てる
+     */
+    public <T> void postOnComplete(CompletableFuture<T> future, BiConsumer<? super T, ? super Throwable> task) {
+        ACTIVE.incrementAndGet();
+        future.whenComplete((result, e) -> {
+            try {
+                post(() -> task.accept(result, e));
+            } finally {
+                done();
+            }
+        });
+    }
+
+    /**
+     * 全ての受信箱が空になり、処理中のメッセージもなくなるまで待つ
+     */
+    public static void awaitIdle() {
+        synchronized (IDLE) {
+            while (ACTIVE.get() > 0) {
+                try {
+                    IDLE.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 受信したメッセージ数
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * 受信箱がいっぱいで捨てたメッセージ数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 未処理のメッセージ数
+     */
+    public int getSize() {
+        return queue.size();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            EXECUTOR.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        Runnable task;
+        for (int i = 0; i < BATCH && (task = queue.poll()) != null; i++) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                done();
+            }
+        }
+        scheduled.set(false);
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private static void done() {
+        if (ACTIVE.decrementAndGet() == 0) {
+            synchronized (IDLE) {
+                IDLE.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.swib.blockchain;
+
+/**
+ * 公開鍵または秘密鍵(DigitalSign.generateKey)
+ */
+public final class Key extends FixedBytes {
+    /** バイト数 */
+    public static final int LENGTH = 10;
+
+    public Key(byte[] value) {
+        super(value, LENGTH);
+    }
+
+    /**
+     * 16進文字列から作る(コマンドラインや設定ファイル用)
+     *
+     * @param hex 16進文字列
+     * @return 値
+     * @throws IllegalArgumentException 16進文字列でないか、長さが違う
+     */
+    public static Key fromHex(String hex) {
+        return new Key(Common.decodeHex(hex));
+    }
+}
@@ -0,0 +1,309 @@
+package org.swib.blockchain;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ブロックヘッダだけを持つノード(財布専用)<br>
+ * 採掘もトランザクションの検証もしない。フルノード(Node)からヘッダだけを受け取り、つながりと採掘(難易度とハッシュ)を検証して、
+ * 仕事量の合計が一番多いチェーンのヘッダを持つ。<br>
+ * 自分のコインはフルノードに問い合わせ、コインと、そのトランザクションがブロックに含まれることの証明(MerkleProof)を受け取る。
+ * 証明が自分のヘッダのコインのダイジェストと合うものだけを自分のコインとする。
+ * ただし、コインがその後で使われていないことは証明できないので、そこは問い合わせたフルノードを信用する<br>
+ * 他のノードから通知は受けない(ブロック全体が送られてくるので)。sync()で自分から問い合わせる<br>
+ * ヘッダはブロックのコインの数によらず97バイトなので、ブロック全体との比は約97/(ブロックの平均の大きさ)になる。
+ * コインが1、2枚のブロックではヘッダがブロックの半分以上になり、ヘッダとコインの問い合わせでブロック全体の9割ほどを受け取る。
+ * 1つのブロックのトランザクションが多いほど節約が大きい
+ */
+public class LightNode {
+    private static final long REQUEST_TIMEOUT = 10000;
+
+    private final Key publicKey;
+    private final Key privateKey;
+    private final String name;
+    private final Logger logger;
+    private final CopyOnWriteArrayList<RemoteNode> nodes = new CopyOnWriteArrayList<>();
+    private final List<BlockHeader> headers = new ArrayList<>();
+    private final List<Hash> hashList = new ArrayList<>();
+    private final Map<Hash, Integer> heights = new HashMap<>();
+    private final Map<CoinId, Coin> coins = new LinkedHashMap<>();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    /** True:自分のコインを問い合わせ直す必要がある(まだ問い合わせていないか、その後にコインを送った) */
+    private boolean stale = true;
+    private final Random random = new Random();
+
+    /**
+     * ノードの作成
+     *
+     * @param name ノード名
+     */
+    public LightNode(String name) {
+        Key[] keys = DigitalSign.generateKey();
+        this.privateKey = keys[1];
+        this.publicKey = keys[0];
+        this.name = name;
+        this.logger = new Logger(name + "(" + publicKey + ")");
+        logger.info("Light client start. - {}", publicKey);
+    }
+
+    /**
+     * 問い合わせるフルノードを追加する(相手からはつながない)
+     *
+     * @param node フルノード
+     */
+    public void addNode(RemoteNode node) {
+        nodes.addIfAbsent(node);
+    }
+
+    /**
+     * 全てのフルノードにヘッダを問い合わせて自分のチェーンを更新し、チェーンが変わった時だけ自分のコインを問い合わせ直す
+     *
+     * @return True:チェーンが伸びたか、入れ替わった
+     */
+    public boolean sync() {
+        boolean changed = false;
+        for (RemoteNode node : nodes) {
+            // 応答はNode.MAX_REPLY_BYTESで打ち切られるので、つなげられる間は続きを問い合わせる
+            while (true) {
+                byte[] locator;
+                synchronized (this) {
+                    locator = Common.serialize(Node.getLocator(hashList));
+                }
+                byte[] reply = await(node.requestHeaders(locator));
+                if (reply == null || !receiveHeaders(reply)) {
+                    break;
+                }
+                changed = true;
+            }
+        }
+        // コインが増えたり確定したりするのはチェーンが変わった時だけなので、変わらなければ問い合わせない
+        boolean refresh;
+        synchronized (this) {
+            refresh = changed || stale;
+        }
+        if (refresh) {
+            refresh();
+        }
+        return changed;
+    }
+
+    /**
+     * フルノードの1つに自分のコインを問い合わせ、証明を検証できたものを自分のコインにする
+     */
+    public void refresh() {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        RemoteNode node = nodes.get(random.nextInt(nodes.size()));
+        byte[] reply = await(node.requestCoins(Common.serialize(publicKey)));
+        if (reply == null) {
+            return;
+        }
+        Object obj = Common.deserialize(reply);
+        if (!(obj instanceof List)) {
+            logger.warn("Coins rejected(Broken data)");
+            return;
+        }
+        Map<CoinId, Coin> verified = new LinkedHashMap<>();
+        int rejected = 0;
+        synchronized (this) {
+            stale = false;
+            for (Object item : (List<?>) obj) {
+                Coin coin = verify(item);
+                if (coin != null) {
+                    verified.put(coin.id, coin);
+                } else {
+                    rejected++;
+                }
+            }
+            coins.clear();
+            coins.putAll(verified);
+        }
+        if (rejected > 0) {
+            logger.warn("Coins rejected({} without valid proof)", rejected);
+        }
+    }
+
+    /**
+     * 自分のコインを1枚送る。トランザクションは全てのフルノードに通知し、送ったコインは自分のコインから外す
+     *
+     * @param receiverPublicKey 送り先
+     * @return False:コインが無い
+     */
+    public boolean send(Key receiverPublicKey) {
+        Coin coin;
+        synchronized (this) {
+            if (coins.isEmpty()) {
+                logger.warn("No coins!");
+                return false;
+            }
+            coin = coins.remove(coins.keySet().iterator().next());
+            stale = true;
+        }
+        logger.info("Send coin to {}", receiverPublicKey);
+        byte[] data = Common.serialize(TransactionOperator.send(coin, privateKey, receiverPublicKey));
+        for (RemoteNode node : nodes) {
+            node.announceTransaction(data, null);
+        }
+        return true;
+    }
+
+    /**
+     * 受け取ったヘッダを自分のチェーンにつなげる。自分のチェーンより仕事量が多い場合だけ入れ替える
+     *
+     * @param input ヘッダのリスト(Node.requestHeaders)
+     * @return True:つなげた
+     */
+    private boolean receiveHeaders(byte[] input) {
+        Object obj = Common.deserialize(input);
+        if (!(obj instanceof List)) {
+            logger.warn("Headers rejected(Broken data)");
+            return false;
+        }
+        List<BlockHeader> received = new ArrayList<>();
+        for (Object o : (List<?>) obj) {
+            if (!(o instanceof BlockHeader)) {
+                logger.warn("Headers rejected(Broken data)");
+                return false;
+            }
+            received.add((BlockHeader) o);
+        }
+        if (received.isEmpty()) {
+            return false;
+        }
+        synchronized (this) {
+            Hash prevHash = received.get(0).prevHash;
+            Integer at = prevHash == null ? Integer.valueOf(-1) : heights.get(prevHash);
+            if (at == null) {
+                logger.warn("Headers rejected(Unknown ancestor)");
+                return false;
+            }
+            int from = at + 1;
+            if (work(received, 0).compareTo(work(headers, from)) <= 0) {
+                return false;
+            }
+            int ret = ProofOfWork.validateHeaders(headers.subList(0, from), received);
+            if (ret > 0) {
+                logger.warn("Headers rejected({})", ret);
+                return false;
+            }
+            while (headers.size() > from) {
+                heights.remove(hashList.remove(hashList.size() - 1));
+                headers.remove(headers.size() - 1);
+            }
+            for (BlockHeader header : received) {
+                Hash hash = header.hash();
+                heights.put(hash, headers.size());
+                hashList.add(hash);
+                headers.add(header);
+            }
+            logger.info("Headers accepted: {} (height {})", received.size(), headers.size());
+        }
+        return true;
+    }
+
+    /**
+     * Node.requestCoinsの1つを検証する。自分宛てで、自分のヘッダのコインのダイジェストで証明が検証できればOK
+     *
+     * @return コイン。NGならnull
+     */
+    private Coin verify(Object item) {
+        if (!(item instanceof List) || ((List<?>) item).size() != 3) {
+            return null;
+        }
+        List<?> list = (List<?>) item;
+        if (!(list.get(0) instanceof Coin) || !(list.get(1) instanceof Integer) || !(list.get(2) instanceof List)) {
+            return null;
+        }
+        Coin coin = (Coin) list.get(0);
+        int height = (Integer) list.get(1);
+        @SuppressWarnings("unchecked")
+        MerkleProof proof = MerkleProof.fromList((List<Object>) list.get(2));
+        if (proof == null || !publicKey.equals(coin.tx.receiverPublicKey) || height < 0 || height >= headers.size()
+                || !proof.verify(coin, headers.get(height))) {
+            return null;
+        }
+        return coin;
+    }
+
+    private static BigInteger work(List<BlockHeader> headers, int from) {
+        BigInteger work = BigInteger.ZERO;
+        for (int i = from; i < headers.size(); i++) {
+            work = work.add(ProofOfWork.work(headers.get(i).difficulty));
+        }
+        return work;
+    }
+
+    private byte[] await(CompletableFuture<byte[]> future) {
+        try {
+            byte[] reply = future.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (reply != null) {
+                receivedBytes.addAndGet(reply.length);
+            }
+            return reply;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Request failed({})", e);
+        }
+        return null;
+    }
+
+    /**
+     * 持っているコインの数(最後にrefreshした時に証明を検証できたもの)
+     */
+    public synchronized int getWallet() {
+        return coins.size();
+    }
+
+    /**
+     * 持っているヘッダの数
+     */
+    public synchronized int getHeight() {
+        return headers.size();
+    }
+
+    /**
+     * ブロックヘッダ
+     *
+     * @param height 位置(0から)
+     * @return ヘッダ
+     */
+    public synchronized BlockHeader getHeader(int height) {
+        return headers.get(height);
+    }
+
+    /**
+     * 最新のブロックのハッシュ
+     *
+     * @return ハッシュ。ヘッダが無ければnull
+     */
+    public synchronized Hash getLastBlockHash() {
+        return hashList.isEmpty() ? null : hashList.get(hashList.size() - 1);
+    }
+
+    /**
+     * フルノードから受け取ったバイト数(ヘッダとコインの問い合わせの応答)
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    public Key getPublicKey() {
+        return publicKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,293 @@
+package org.swib.blockchain;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ログ<br>
+ * 書き込むスレッドは全体で1つのリングバッファにメッセージの書式と引数を入れるだけで、ロックも取らず文字列も作らない。
+ * 文字列の組み立て(引数のtoString)と出力はバックグラウンドのスレッドが行い、溜まった分をまとめて書いてから1回だけflushする。<br>
+ * 書式の"{}"は順に引数で置き換える。引数は出力するまで参照を持つので、変更しないもの(BlockやCoinなど)を渡すこと。<br>
+ * 出力しないレベルのログはレベルを比べるだけで何もしない。リングバッファがいっぱいの時は捨てて数える。<br>
+ * INFO以下はSystem.out、WARN以上はSystem.errに出す(出す時点のもの)。レベルは-Dswib.logLevelで指定できる
+ */
+public class Logger {
+    /**
+     * ログのレベル
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /** リングバッファの大きさ(2のべき乗) */
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("swib.logBuffer", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    /** 出力スレッドが何もない時に待つ時間(ナノ秒)。起こし損ねてもこれ以上は遅れない */
+    private static final long IDLE_WAIT = 100000000L;
+    /** 出力スレッドがまとめて書く最大の文字数 */
+    private static final int BATCH_CHARS = 64 * 1024;
+
+    /**
+     * リングバッファの1つの場所。sequenceが書き込み済みか読み込み済みかを表す
+     */
+    private static class Slot {
+        volatile long sequence;
+        Logger logger;
+        Level level;
+        String format;
+        int count;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+    }
+
+    private static final Slot[] RING = new Slot[CAPACITY];
+    /** 次に書き込む位置 */
+    private static final AtomicLong TAIL = new AtomicLong();
+    /** 次に読み込む位置(出力スレッドだけが更新する) */
+    private static volatile long head;
+    /** 出力してflushが終わった位置 */
+    private static volatile long written;
+    private static volatile boolean sleeping;
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile Level level = parse(System.getProperty("swib.logLevel"));
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Slot();
+            RING[i].sequence = i;
+        }
+        WRITER = new Thread(Logger::write, "logger");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush));
+    }
+
+    private final String name;
+
+    /**
+     * コンストラクタ
+     *
+     * @param name 各行の先頭に付ける名前
+     */
+    public Logger(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 出力するレベルを変える
+     *
+     * @param level このレベル以上を出力する。OFFなら何も出力しない
+     */
+    public static void setLevel(Level level) {
+        Logger.level = level;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * そのレベルのログを出力するか。引数を作るのに手間がかかる時に先に調べる
+     *
+     * @param level レベル
+     * @return True:出力する
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(Logger.level) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * リングバッファがいっぱいで捨てたログの数
+     */
+    public static long getDropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * 今までに書き込まれたログを出力し終わるまで待つ(標準出力を切り替える前や、対話の入力を待つ前に呼ぶ)
+     */
+    public static void flush() {
+        long target = TAIL.get();
+        while (written < target && WRITER.isAlive()) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(100000L);
+        }
+    }
+
+    public void debug(String format) {
+        log(Level.DEBUG, format, 0, null, null, null);
+    }
+
+    public void debug(String format, Object arg) {
+        log(Level.DEBUG, format, 1, arg, null, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, 2, arg1, arg2, null);
+    }
+
+    public void info(String format) {
+        log(Level.INFO, format, 0, null, null, null);
+    }
+
+    public void info(String format, Object arg) {
+        log(Level.INFO, format, 1, arg, null, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, 2, arg1, arg2, null);
+    }
+
+    public void warn(String format) {
+        log(Level.WARN, format, 0, null, null, null);
+    }
+
+    public void warn(String format, Object arg) {
+        log(Level.WARN, format, 1, arg, null, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2) {
+        log(Level.WARN, format, 2, arg1, arg2, null);
+    }
+
+    public void error(String format) {
+        log(Level.ERROR, format, 0, null, null, null);
+    }
+
+    public void error(String format, Object arg) {
+        log(Level.ERROR, format, 1, arg, null, null);
+    }
+
+    public void error(String format, Object arg1, Object arg2) {
+        log(Level.ERROR, format, 2, arg1, arg2, null);
+    }
+
+    /**
+     * 引数が3つのログ
+     *
+     * @param level レベル
+     * @param format 書式
+     * @param arg1 1つ目の"{}"
+     * @param arg2 2つ目の"{}"
+     * @param arg3 3つ目の"{}"
+     */
+    public void log(Level level, String format, Object arg1, Object arg2, Object arg3) {
+        log(level, format, 3, arg1, arg2, arg3);
+    }
+
+    private void log(Level level, String format, int count, Object arg1, Object arg2, Object arg3) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Slot slot;
+        long pos;
+        while (true) {
+            pos = TAIL.get();
+            slot = RING[(int) pos & MASK];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (TAIL.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // 出力が追い付いていない
+                DROPPED.incrementAndGet();
+                return;
+            }
+        }
+        slot.logger = this;
+        slot.level = level;
+        slot.format = format;
+        slot.count = count;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.arg3 = arg3;
+        slot.sequence = pos + 1;
+        if (sleeping) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * 出力スレッド。書き込まれている分を続けて読み、出力先が変わる時、溜まった文字が多くなった時、バッファが空になった時に書き出す
+     */
+    private static void write() {
+        StringBuilder sb = new StringBuilder();
+        PrintStream current = null;
+        while (true) {
+            long pos = head;
+            Slot slot = RING[(int) pos & MASK];
+            if (slot.sequence != pos + 1) {
+                if (current != null) {
+                    print(current, sb);
+                    current = null;
+                }
+                written = pos;
+                sleeping = true;
+                if (slot.sequence != pos + 1) {
+                    LockSupport.parkNanos(IDLE_WAIT);
+                }
+                sleeping = false;
+                continue;
+            }
+            PrintStream out = slot.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            if (out != current && current != null) {
+                print(current, sb);
+                written = pos;
+            }
+            current = out;
+            try {
+                format(sb, slot);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            sb.append(System.lineSeparator());
+            slot.logger = null;
+            slot.format = null;
+            slot.arg1 = null;
+            slot.arg2 = null;
+            slot.arg3 = null;
+            slot.sequence = pos + CAPACITY;
+            head = pos + 1;
+            if (sb.length() >= BATCH_CHARS) {
+                print(current, sb);
+                written = pos + 1;
+            }
+        }
+    }
+
+    private static void format(StringBuilder sb, Slot slot) {
+        sb.append(slot.logger.name).append(": ");
+        String format = slot.format;
+        int start = 0;
+        for (int i = 0; i < slot.count; i++) {
+            int index = format.indexOf("{}", start);
+            if (index < 0) {
+                break;
+            }
+            sb.append(format, start, index);
+            sb.append(i == 0 ? slot.arg1 : i == 1 ? slot.arg2 : slot.arg3);
+            start = index + 2;
+        }
+        sb.append(format, start, format.length());
+    }
+
+    private static void print(PrintStream out, StringBuilder sb) {
+        out.print(sb);
+        out.flush();
+        sb.setLength(0);
+    }
+
+    private static Level parse(String name) {
+        if (name != null) {
+            try {
+                return Level.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                // None
+            }
+        }
+        return Level.INFO;
+    }
+}
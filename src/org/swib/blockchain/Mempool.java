@@ -0,0 +1,182 @@
+package org.swib.blockchain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * まだブロックに入っていないトランザクション(コイン)の置き場<br>
+ * 受け取ったコインは承認済みのチェーンに対して先に検証しておき、ブロックを作るときにまとめて入れる。
+ * 同じコインのトランザクションは一つしか置かない
+ */
+public class Mempool {
+    /** 同じトランザクションが既にある */
+    public static final int DUPLICATE = 6;
+    /** 同じコインの別のトランザクションが既にある */
+    public static final int CONFLICT = 7;
+
+    /**
+     * 置かれているトランザクション
+     */
+    private static class Entry {
+        final Coin coin;
+        final long time;
+
+        Entry(Coin coin, long time) {
+            this.coin = coin;
+            this.time = time;
+        }
+    }
+
+    private final Map<CoinId, Entry> pending = new LinkedHashMap<>();
+    private int maxBlockCoins;
+    private long maxAge;
+
+    private long blocks;
+    private long packed;
+    private int lastPacked;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maxBlockCoins 1ブロックに入れるトランザクションの最大数
+     * @param maxAge トランザクションを置いておく最大の時間(ミリ秒)
+     */
+    public Mempool(int maxBlockCoins, long maxAge) {
+        this.maxBlockCoins = maxBlockCoins;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * トランザクションを追加する。承認済みのチェーンの続きとして正しくなければ追加しない
+     *
+     * @param coin コイン
+     * @param state 承認済みのチェーンの状態
+     * @return 0: OK 3-5: ProofOfWork.validateと同じNG DUPLICATE(既にブロックに入っている場合も), CONFLICT
+     */
+    public int add(Coin coin, ChainState state) {
+        Entry entry = pending.get(coin.id);
+        if (entry != null) {
+            return Objects.equals(entry.coin.senderSign, coin.senderSign) ? DUPLICATE : CONFLICT;
+        }
+        Coin latest = state.getLatest(coin.id);
+        if (latest != null && Objects.equals(latest.senderSign, coin.senderSign)) {
+            return DUPLICATE;
+        }
+        int ret = validate(coin, state);
+        if (ret == 0) {
+            pending.put(coin.id, new Entry(coin, System.currentTimeMillis()));
+        }
+        return ret;
+    }
+
+    /**
+     * 次のブロックに入れるトランザクションを古い順に選ぶ。古すぎるものは捨てる
+     *
+     * @return トランザクション(最大でmaxBlockCoins個)
+     */
+    public List<Coin> select() {
+        long limit = System.currentTimeMillis() - maxAge;
+        List<Coin> coins = new ArrayList<>();
+        for (Iterator<Entry> it = pending.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.time < limit) {
+                it.remove();
+            } else if (coins.size() < maxBlockCoins) {
+                coins.add(entry.coin);
+            }
+        }
+        return coins;
+    }
+
+    /**
+     * チェーンが変わった時に、変わったブロックに含まれるコインのトランザクションを検証し直す。
+     * ブロックに入ったものや正しくなくなったものは捨てる
+     *
+     * @param blocks 追加または巻き戻されたブロック
+     * @param state 変更後のチェーンの状態
+     */
+    public void prune(List<Block> blocks, ChainState state) {
+        for (Block block : blocks) {
+            for (Coin coin : block.coins) {
+                Entry entry = pending.get(coin.id);
+                if (entry != null && validate(entry.coin, state) != 0) {
+                    pending.remove(coin.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * チェーンの入れ替えで本線から外れたブロックのトランザクションを置き直す。
+     * 変更後のチェーンの続きとして正しいものだけを置く(新しい本線に入っているものや、同じコインの別のトランザクションがあるものは置かない)
+     *
+     * @param removed 本線から外れたブロック(古い順)
+     * @param state 変更後のチェーンの状態
+     * @return 置き直したトランザクションの数
+     */
+    public int restore(List<Block> removed, ChainState state) {
+        int n = 0;
+        for (Block block : removed) {
+            // 最初のコインは採掘の報酬なので、外れたブロックの外では使えない
+            for (Coin coin : block.coins.subList(Math.min(1, block.coins.size()), block.coins.size())) {
+                if (add(coin, state) == 0) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 採掘に成功したブロックのトランザクション数を記録する
+     *
+     * @param coins ブロックに入れたトランザクションの数(報酬を除く)
+     */
+    public void recordBlock(int coins) {
+        blocks++;
+        packed += coins;
+        lastPacked = coins;
+    }
+
+    /**
+     * 置かれているトランザクションの数
+     */
+    public int getSize() {
+        return pending.size();
+    }
+
+    /**
+     * 採掘したブロックの1ブロックあたりの平均トランザクション数
+     */
+    public double getAverageTxPerBlock() {
+        return blocks == 0 ? 0 : (double) packed / blocks;
+    }
+
+    /**
+     * 最後に採掘したブロックのトランザクション数
+     */
+    public int getLastTxPerBlock() {
+        return lastPacked;
+    }
+
+    public void setMaxBlockCoins(int maxBlockCoins) {
+        this.maxBlockCoins = maxBlockCoins;
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    private static int validate(Coin coin, ChainState state) {
+        Coin latest = state.getLatest(coin.id);
+        if (latest == null || !state.isMined(coin.id)) {
+            return 3; // 3.NG
+        }
+        int ret = TransactionOperator.validate(Arrays.asList(latest, coin));
+        return ret > 0 ? 3 + ret : 0; // 4.NG or 5.NG
+    }
+}
@@ -0,0 +1,94 @@
+package org.swib.blockchain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * コインがブロックに含まれることの証明(MerkleTree.proof)<br>
+ * コインの位置、ブロックのコインの数、葉から根までの兄弟のハッシュ(下の段から順)を持つ。
+ * 兄弟の無い段(奇数個の最後)は飛ばすので、兄弟が左右どちらにあるかは位置と数から決まる
+ */
+public class MerkleProof {
+    /** コインの位置 */
+    public final int index;
+    /** ブロックのコインの数 */
+    public final int count;
+    /** 兄弟のハッシュ(下の段から順) */
+    public final List<Hash> siblings;
+
+    public MerkleProof(int index, int count, List<Hash> siblings) {
+        this.index = index;
+        this.count = count;
+        this.siblings = Collections.unmodifiableList(new ArrayList<>(siblings));
+    }
+
+    /**
+     * 証明を検証する
+     *
+     * @param coin 含まれているはずのコイン
+     * @param header コインが含まれているはずのブロックのヘッダ
+     * @return True:含まれている
+     */
+    public boolean verify(Coin coin, BlockHeader header) {
+        return MerkleTree.verify(coin, this, header.coinsDigest);
+    }
+
+    /**
+     * バイナリにする(Codecのリスト: 位置(Integer) 数(Integer) 兄弟(Hash)...)
+     *
+     * @return バイナリ
+     */
+    public byte[] toBytes() {
+        return Codec.encode(toList());
+    }
+
+    /**
+     * Codecのリストにする(他のリストの要素にする時に使う)
+     *
+     * @return 位置(Integer) 数(Integer) 兄弟(Hash)...
+     */
+    public List<Object> toList() {
+        List<Object> list = new ArrayList<>();
+        list.add(index);
+        list.add(count);
+        list.addAll(siblings);
+        return list;
+    }
+
+    /**
+     * バイナリから戻す
+     *
+     * @param data バイナリ(toBytes)
+     * @return 証明。形式が正しくなければnull
+     */
+    @SuppressWarnings("unchecked")
+    public static MerkleProof fromBytes(byte[] data) {
+        try {
+            return fromList((List<Object>) Codec.decode(data));
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Codecのリストから戻す
+     *
+     * @param list リスト(toList)
+     * @return 証明。形式が正しくなければnull
+     */
+    public static MerkleProof fromList(List<Object> list) {
+        try {
+            if (list == null || list.size() < 2 || !(list.get(0) instanceof Integer)
+                    || !(list.get(1) instanceof Integer)) {
+                return null;
+            }
+            List<Hash> siblings = new ArrayList<>();
+            for (Object sibling : list.subList(2, list.size())) {
+                siblings.add((Hash) sibling);
+            }
+            return new MerkleProof((Integer) list.get(0), (Integer) list.get(1), siblings);
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+}
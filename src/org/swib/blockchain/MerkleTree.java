@@ -0,0 +1,121 @@
+package org.swib.blockchain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ブロックに含まれるコインのマークル木<br>
+ * 葉はコインのハッシュ(Coin.getHash)で、隣り合う2つのハッシュをつなげてハッシュしたものを親にする。
+ * 葉と節のハッシュは先頭に1バイトの印(0x00, 0x01)を付けて区別する。
+ * 数が奇数の段では最後のハッシュをそのまま上の段に上げる(複製はしない)。<br>
+ * 根(ルート)はブロックヘッダに入るので、ヘッダの大きさとハッシュの手間はコインの数によらない。
+ * あるコインがブロックに含まれることは、ブロック全体ではなく根までの兄弟のハッシュ(MerkleProof)だけで示せる
+ */
+public class MerkleTree {
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    /**
+     * マークル木の根
+     *
+     * @param coins コイン
+     * @return 根のハッシュ。コインが無ければ空のバイト列のハッシュ
+     */
+    public static Hash root(List<Coin> coins) {
+        if (coins.isEmpty()) {
+            return new Hash(Common.hash(new byte[0]));
+        }
+        List<byte[]> level = leaves(coins);
+        while (level.size() > 1) {
+            level = up(level);
+        }
+        return new Hash(level.get(0));
+    }
+
+    /**
+     * コインがブロックに含まれることの証明を作る
+     *
+     * @param coins ブロックのコイン
+     * @param index 証明するコインの位置
+     * @return 証明
+     */
+    public static MerkleProof proof(List<Coin> coins, int index) {
+        if (index < 0 || index >= coins.size()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + coins.size());
+        }
+        List<Hash> siblings = new ArrayList<>();
+        List<byte[]> level = leaves(coins);
+        int i = index;
+        while (level.size() > 1) {
+            int sibling = i ^ 1;
+            if (sibling < level.size()) {
+                siblings.add(new Hash(level.get(sibling)));
+            }
+            level = up(level);
+            i /= 2;
+        }
+        return new MerkleProof(index, coins.size(), siblings);
+    }
+
+    /**
+     * 証明を検証する
+     *
+     * @param coin 含まれているはずのコイン
+     * @param proof 証明
+     * @param root ブロックヘッダにある根(BlockHeader.coinsDigest)
+     * @return True:コインは根の木に含まれている
+     */
+    public static boolean verify(Coin coin, MerkleProof proof, Hash root) {
+        if (proof.index < 0 || proof.index >= proof.count) {
+            return false;
+        }
+        byte[] hash = leaf(coin);
+        int i = proof.index;
+        int n = proof.count;
+        int k = 0;
+        while (n > 1) {
+            if ((i ^ 1) < n) {
+                if (k >= proof.siblings.size()) {
+                    return false;
+                }
+                byte[] sibling = proof.siblings.get(k++).array();
+                hash = (i & 1) == 0 ? node(hash, sibling) : node(sibling, hash);
+            }
+            i /= 2;
+            n = (n + 1) / 2;
+        }
+        return k == proof.siblings.size() && Arrays.equals(hash, root.array());
+    }
+
+    private static List<byte[]> leaves(List<Coin> coins) {
+        List<byte[]> level = new ArrayList<>(coins.size());
+        for (Coin coin : coins) {
+            level.add(leaf(coin));
+        }
+        return level;
+    }
+
+    private static List<byte[]> up(List<byte[]> level) {
+        List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            next.add(i + 1 < level.size() ? node(level.get(i), level.get(i + 1)) : level.get(i));
+        }
+        return next;
+    }
+
+    private static byte[] leaf(Coin coin) {
+        byte[] hash = coin.getHash().array();
+        byte[] buf = new byte[1 + hash.length];
+        buf[0] = LEAF;
+        System.arraycopy(hash, 0, buf, 1, hash.length);
+        return Common.hash(buf);
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        byte[] buf = new byte[1 + left.length + right.length];
+        buf[0] = NODE;
+        System.arraycopy(left, 0, buf, 1, left.length);
+        System.arraycopy(right, 0, buf, 1 + left.length, right.length);
+        return Common.hash(buf);
+    }
+}
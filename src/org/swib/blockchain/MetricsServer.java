@@ -0,0 +1,131 @@
+package org.swib.blockchain;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ノードの統計をテキストで返すHTTPサーバ(GET /metrics)<br>
+ * 1行に1つの値を「名前{node="ノード名"} 値」の形式で書く(Prometheusのテキスト形式)。
+ * ヒストグラムはバケットごとの累積の数と合計と数を書く
+ */
+public class MetricsServer {
+    private final List<NodeMetrics> metrics = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+
+    /**
+     * 統計を返すノードを追加する
+     *
+     * @param nodeMetrics ノードの統計(Node.getMetrics)
+     */
+    public void add(NodeMetrics nodeMetrics) {
+        metrics.add(nodeMetrics);
+    }
+
+    /**
+     * 待ち受けを始める
+     *
+     * @param host 待ち受けるホスト
+     * @param port 待ち受けるポート(0なら空いているポート)
+     * @return 待ち受けているポート
+     * @throws IOException 待ち受けられない
+     */
+    public synchronized int start(String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * 待ち受けを止める
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * 全ノードの統計のテキスト
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (NodeMetrics m : metrics) {
+            String label = "{node=\"" + m.getName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+            rate(sb, "swib_hash_rate", label, m.getHashRate());
+            value(sb, "swib_nonce_attempts_total", label, m.getNonceAttempts());
+            value(sb, "swib_height", label, m.getHeight());
+            value(sb, "swib_difficulty", label, m.getDifficulty());
+            value(sb, "swib_side_blocks", label, m.getSideBlocks());
+            value(sb, "swib_wallet", label, m.getWallet());
+            value(sb, "swib_mempool_size", label, m.getMempoolSize());
+            value(sb, "swib_peers", label, m.getPeerCount());
+            value(sb, "swib_inbox_received_total", label, m.getInboxReceived());
+            value(sb, "swib_inbox_dropped_total", label, m.getInboxDropped());
+            value(sb, "swib_throttled_messages_total", label, m.getThrottledMessages());
+            value(sb, "swib_throttled_peers", label, m.getThrottledPeers());
+            value(sb, "swib_blocks_accepted_total", label, m.getBlocksAccepted());
+            reasons(sb, "swib_blocks_rejected_total", label, m.getBlocksRejected());
+            value(sb, "swib_reorgs_total", label, m.getReorgs());
+            value(sb, "swib_transactions_confirmed", label, m.getTransactionsConfirmed());
+            value(sb, "swib_transactions_accepted_total", label, m.getTransactionsAccepted());
+            reasons(sb, "swib_transactions_rejected_total", label, m.getTransactionsRejected());
+            histogram(sb, "swib_sync_bytes", label, m.getSyncBytesHistogram());
+            histogram(sb, "swib_sync_latency_us", label, m.getSyncLatencyHistogram());
+            histogram(sb, "swib_validate_us", label, m.getValidateTimeHistogram());
+            histogram(sb, "swib_block_interval_us", label, m.getBlockIntervalHistogram());
+        }
+        // 署名の記録はノードごとではなくプロセスで1つ
+        SignatureCache cache = TransactionOperator.getSignatureCache();
+        sb.append("swib_signature_cache_hits_total ").append(cache.getHits()).append('\n');
+        sb.append("swib_signature_cache_misses_total ").append(cache.getMisses()).append('\n');
+        sb.append("swib_signature_cache_evictions_total ").append(cache.getEvictions()).append('\n');
+        sb.append("swib_signature_cache_size ").append(cache.size()).append('\n');
+        sb.append("swib_log_dropped_total ").append(Logger.getDropped()).append('\n');
+        return sb.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = format().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void rate(StringBuilder sb, String name, String label, double value) {
+        sb.append(name).append(label).append("} ").append(String.format(Locale.ROOT, "%.1f", value)).append('\n');
+    }
+
+    private static void value(StringBuilder sb, String name, String label, long value) {
+        sb.append(name).append(label).append("} ").append(value).append('\n');
+    }
+
+    private static void reasons(StringBuilder sb, String name, String label, Map<String, Long> counts) {
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            value(sb, name, label + ",reason=\"" + e.getKey() + "\"", e.getValue());
+        }
+    }
+
+    private static void histogram(StringBuilder sb, String name, String label, Histogram h) {
+        long cumulative = 0;
+        long count = h.getCount();
+        for (int i = 0; i < h.getBuckets() - 1 && cumulative < count; i++) {
+            cumulative += h.getBucketCount(i);
+            value(sb, name + "_bucket", label + ",le=\"" + h.getUpperBound(i) + "\"", cumulative);
+        }
+        value(sb, name + "_bucket", label + ",le=\"+Inf\"", count);
+        value(sb, name + "_sum", label, h.getSum());
+        value(sb, name + "_count", label, count);
+    }
+}
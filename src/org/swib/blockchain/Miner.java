@@ -0,0 +1,115 @@
+package org.swib.blockchain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 複数スレッドでのブロックの採掘<br>
+ * Nonce空間をスレッド数で分割して並列に探索し、どれかのスレッドが見つけたら全スレッドを止める。<br>
+ * block.nonceは共有されているので、各スレッドは自分のヘッダバッファ(HeaderHasher)に対して試行する
+ */
+public class Miner {
+    private static final int NONCE_LEN = BlockHeader.NONCE_LEN;
+    private static final int COUNTER_LEN = 8;
+
+    private final int threads;
+    private final ExecutorService executor;
+    private volatile double hashRate;
+    private final AtomicLong totalAttempts = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     *
+     * @param threads 採掘に使うスレッド数
+     */
+    public Miner(int threads) {
+        this.threads = Math.max(1, threads);
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "miner");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * ブロックを指定回数採掘する。試行回数は全スレッドの合計
+     *
+     * @param block 採掘しようとするブロック
+     * @param trial 試行回数(負の場合は見つかるまで)
+     * @return Trueなら成功。block.nonceには成功したNonceが記録されている。
+     */
+    public boolean find(BlockTemplate block, int trial) {
+        final long limit = trial < 0 ? Long.MAX_VALUE : trial;
+        final byte[] header = block.getHeader().toBytes();
+        final int difficulty = block.difficulty;
+        final byte[] base = Common.getRand(NONCE_LEN);
+        final AtomicBoolean found = new AtomicBoolean();
+        final AtomicLong attempts = new AtomicLong();
+
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            final int offset = w;
+            futures.add(executor.submit(() -> {
+                HeaderHasher hasher = new HeaderHasher(header);
+                hasher.setNonce(base);
+                long count = 0;
+                for (long i = offset; i < limit && !found.get(); i += threads) {
+                    setCounter(hasher, i);
+                    count++;
+                    if (ProofOfWork.checkHash(hasher.hash(), difficulty) && found.compareAndSet(false, true)) {
+                        block.nonce = new Nonce(hasher.getNonce());
+                    }
+                }
+                attempts.addAndGet(count);
+            }));
+        }
+
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                found.set(true);
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        hashRate = attempts.get() * 1e9 / elapsed;
+        totalAttempts.addAndGet(attempts.get());
+        return found.get();
+    }
+
+    /**
+     * 直前の採掘のハッシュレート
+     *
+     * @return 1秒あたりの試行回数
+     */
+    public double getHashRate() {
+        return hashRate;
+    }
+
+    /**
+     * これまでの採掘の試行回数の合計
+     */
+    public long getAttempts() {
+        return totalAttempts.get();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    private static void setCounter(HeaderHasher hasher, long counter) {
+        for (int i = 0; i < COUNTER_LEN; i++) {
+            hasher.setNonce(NONCE_LEN - 1 - i, (byte) (counter >>> (8 * i)));
+        }
+    }
+}
@@ -1,8 +1,23 @@
 package org.swib.blockchain;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * BitCoinを操作するノード<br>
@@ -10,46 +25,198 @@ import java.util.Map;
  * NodeOperatorはユーザが操作する関数で、コインの採掘(＝トランザクションの保証)、コインの送金、正しくないコインの送金と言った操作ができる
  * <br>
  * RemoteNodeは各Nodeが知っている他のノードで、ノード情報拡散、トランザクションリクエスト、ブロックチェーンの同期という操作ができる
+ * <br>
+ * 他のノードからのメッセージはInboxに入り、ノードごとに順番に非同期で処理される。
+ * ブロックチェーンなどの状態はこのノードのロックを取って読み書きする
+ * <br>
+ * 各ノードは数個の隣のノードとだけつながり、新しいブロックとトランザクションは初めて受け取った時だけ隣のノードに中継する(ゴシップ)
+ * <br>
+ * 分岐したチェーンは仕事量(ProofOfWork.work)の合計が多い方を選ぶ。負けた方や巻き戻したブロックはBlockTreeに残しておき、
+ * 切り替える時は分岐点まで巻き戻して違うブロックだけを検証し直す
  */
 public class Node implements RemoteNode, NodeOperator {
-    private final String publicKey;
+    private static final int INBOX_CAPACITY = 1000;
+    private static final long REQUEST_TIMEOUT = 10000;
+    private static final int DEFAULT_MAX_PEERS = 8;
+    private static final int INBOUND_RATIO = 4;
+    private static final int SEEN_SIZE = 10000;
+    private static final int STORE_SYNC_EVERY = 16;
+    private static final int SNAPSHOT_INTERVAL = 100;
+    private static final int SNAPSHOT_KEEP = 2;
+    private static final int SIDE_DEPTH = 100;
+    private static final int SIDE_CAPACITY = 1000;
+    private static final String LESS_WORK = "Block rejected(0. Not more work than current chain)";
+    /** 受け取るブロック1つの最大のバイト数 */
+    private static final int MAX_BLOCK_BYTES = 256 * 1024;
+    /** 受け取るトランザクション1つの最大のバイト数 */
+    private static final int MAX_TRANSACTION_BYTES = 1024;
+    /**
+     * requestBlocks, requestHeaders, requestCoinsの1回の応答の最大のバイト数。
+     * 超える分は返さず、相手は続きをもう一度問い合わせる(SocketTransportのフレームの最大の大きさもこれで決まる)
+     */
+    static final int MAX_REPLY_BYTES = 4 * 1024 * 1024;
+    /** 受け取ったブロックの処理の結果(0は承認、1-9はProofOfWork.validateのNG) */
+    private static final int NOT_MORE_WORK = -1;
+    /** データが壊れていて読めなかった(NodeMetricsの拒否の理由にも使う) */
+    static final int BROKEN = -2;
+    private static final int UNKNOWN_ANCESTOR = -3;
+    private static final int IGNORED = -4;
+    /** 送り主に問い合わせ中(結果は応答が来てから受信箱で処理する) */
+    private static final int FETCHING = -5;
+    private static final String[] MESSAGES = { "Not mined block", "Illegal previous block hash", "Not mined coin",
+            "Illegal previous coin hash", "Other's coin", "Already pending", "Double spending", "Illegal difficulty",
+            "Illegal timestamp" };
+
+    private final Key publicKey;
     private final String name;
+    private final Logger logger;
 
-    private final String privateKey;
-    private final List<RemoteNode> nodes = new ArrayList<>();
-    private final List<Block> blockList = new ArrayList<>();
-    private final Map<String, List<Coin>> wallet = new HashMap<>();
+    private final Key privateKey;
+    private final CopyOnWriteArrayList<RemoteNode> nodes = new CopyOnWriteArrayList<>();
+    private final List<Block> blockList;
+    private final BlockStore store;
+    private final SnapshotStore snapshots;
+    private int snapshotHeight;
+    private final List<Hash> hashList = new ArrayList<>();
+    private final Map<Hash, Integer> heights = new HashMap<>();
+    private final ChainState state = new ChainState(SIDE_DEPTH);
+    private final BlockTree tree = new BlockTree(SIDE_DEPTH, SIDE_CAPACITY);
+    private final Mempool mempool = new Mempool(100, 10 * 60 * 1000);
+    private final Miner miner;
+    private final NodeMetrics metrics;
+    private final Inbox inbox = new Inbox(INBOX_CAPACITY);
+    private final PeerMonitor peers = new PeerMonitor();
+    private volatile boolean verify = false;
+    private volatile Random random = new Random();
+    private volatile String address;
+    private volatile int maxPeers = DEFAULT_MAX_PEERS;
+    /** 受け取って検証が通ったブロックのハッシュ(古いものから忘れる) */
+    private final Set<Hash> seen = Collections.newSetFromMap(new LinkedHashMap<Hash, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Hash, Boolean> eldest) {
+            return size() > SEEN_SIZE;
+        }
+    });
 
     /**
-     * ノードの作成
+     * ノードの作成。採掘にはCPUのコア数だけスレッドを使う
      * 
      * @param name ノード名
      */
     public Node(String name) {
-        String[] keys = DigitalSign.generateKey();
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * ノードの作成
+     * 
+     * @param name ノード名
+     * @param threads 採掘に使うスレッド数
+     */
+    public Node(String name, int threads) {
+        this.miner = new Miner(threads);
+        this.metrics = new NodeMetrics(this, miner);
+        Key[] keys = DigitalSign.generateKey();
+        this.privateKey = keys[1];
+        this.publicKey = keys[0];
+        this.name = name;
+        this.logger = new Logger(name + "(" + publicKey + ")");
+        this.blockList = new ArrayList<>();
+        this.store = null;
+        this.snapshots = null;
+
+        logger.info("Client start. - {}", publicKey);
+        nodes.add(this);
+    }
+
+    /**
+     * ブロックチェーンをファイルに保存するノードの作成。保存されているチェーンがあれば、検証し直さずにそのまま使う。
+     * 鍵も保存して、次に起動した時も同じ鍵(同じ財布)を使う
+     * 
+     * @param name ノード名
+     * @param threads 採掘に使うスレッド数
+     * @param dir 保存先のディレクトリ
+     * @throws IOException 保存先が開けない
+     */
+    public Node(String name, int threads, File dir) throws IOException {
+        this.miner = new Miner(threads);
+        this.metrics = new NodeMetrics(this, miner);
+        this.store = new BlockStore(dir, STORE_SYNC_EVERY);
+        Key[] keys = loadKeys(new File(dir, "node.key"));
         this.privateKey = keys[1];
         this.publicKey = keys[0];
         this.name = name;
+        this.logger = new Logger(name + "(" + publicKey + ")");
+        this.snapshots = new SnapshotStore(dir, SNAPSHOT_KEEP);
+        this.blockList = store;
 
-        log("Client start. - " + publicKey);
+        logger.info("Client start. - {}", publicKey);
         nodes.add(this);
+        load();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
     }
 
     /**
-     * 自分の持っているノード情報を他のノードに拡散する。 通常は数個と接続して、マルチホップ通信で拡散するが、今回は全ノードが互いに接続している。
+     * ノードを隣のノードとしてつなぐ(相手からもつないでもらう)。隣のノードが既にmaxPeersの4倍いれば断る。<br>
+     * 隣のノードがmaxPeersに満たなければ、相手の隣のノードを教えてもらってそちらにもつなぐ。
+     * 全ノードが互いにつながると接続の数がノード数の2乗になるので、隣のノードの数を抑えてマルチホップで拡散する
      * 
      * @param node 追加するノード
      */
     public void addNode(RemoteNode node) {
-        if (!nodes.contains(node)) {
+        boolean discover;
+        synchronized (nodes) {
+            if (node == this || nodes.contains(node)) {
+                return;
+            }
+            if (getPeerCount() >= maxPeers * INBOUND_RATIO) {
+                node.removeNode(this);
+                return;
+            }
             nodes.add(node);
-            for (RemoteNode n : nodes) {
-                if (node != n) {
-                    n.addNode(node);
-                    node.addNode(n);
+            discover = getPeerCount() < maxPeers;
+        }
+        node.addNode(this);
+        if (discover) {
+            node.requestPeers().thenAccept(peers -> {
+                // 古いノードばかりにつながらないように順番を混ぜる
+                Collections.shuffle(peers);
+                for (RemoteNode peer : peers) {
+                    if (getPeerCount() >= maxPeers) {
+                        break;
+                    }
+                    addNode(peer);
                 }
+            });
+        }
+    }
+
+    /**
+     * 隣のノードから外す(相手がつなぐのを断った)
+     * 
+     * @param node 外すノード
+     */
+    public void removeNode(RemoteNode node) {
+        if (node != this) {
+            nodes.remove(node);
+        }
+    }
+
+    /**
+     * 隣のノードを教える
+     * 
+     * @return 隣のノード
+     */
+    public CompletableFuture<List<RemoteNode>> requestPeers() {
+        List<RemoteNode> peers = new ArrayList<>();
+        for (RemoteNode n : nodes) {
+            if (n != this) {
+                peers.add(n);
             }
         }
+        return CompletableFuture.completedFuture(peers);
     }
 
     /**
@@ -59,37 +226,39 @@ public class Node implements RemoteNode, NodeOperator {
      * @param receiverPublicKey 送り先の公開鍵
      * @return True:成功
      */
-    public boolean sendWrong(int mode, String receiverPublicKey) {
+    public boolean sendWrong(int mode, Key receiverPublicKey) {
         Coin coin = null;
         String type = "";
 
-        if (mode == 1) {
-            for (String pkey : wallet.keySet()) {
-                if (!pkey.equals(publicKey)) {
-                    coin = wallet.get(pkey).get(0);
-                    type = "Other's coin";
-                    break;
+        synchronized (this) {
+            if (mode == 1) {
+                for (Key pkey : state.getOwners()) {
+                    if (!pkey.equals(publicKey)) {
+                        coin = state.getCoins(pkey).iterator().next();
+                        type = "Other's coin";
+                        break;
+                    }
+                }
+            } else if (mode == 2) {
+                coin = new Coin(publicKey);
+                type = "Not mined coin";
+            } else if (mode == 3) {
+                if (getWallet() > 0) {
+                    Coin now = state.getCoins(publicKey).iterator().next();
+                    Coin.Transaction tx = new Coin.Transaction(DigitalSign.hash("aaaaaaaaaa"), now.tx.receiverPublicKey);
+                    coin = new Coin(now.id, tx, now.senderSign);
+                    type = "Illegal previous transaction hash";
                 }
-            }
-        } else if (mode == 2) {
-            coin = new Coin(publicKey);
-            type = "Not mined coin";
-        } else if (mode == 3) {
-            if (getWallet() > 0) {
-                Coin now = wallet.get(publicKey).get(0);
-                Coin.Transaction tx = new Coin.Transaction("aaaaaaaaaa", now.tx.receiverPublicKey);
-                coin = new Coin(now.id, tx, now.senderSign);
-                type = "Illegal previous transaction hash";
             }
         }
 
         if (coin != null) {
-            log("HACK! Send wrong coin(" + type + ") to " + receiverPublicKey);
+            logger.info("HACK! Send wrong coin({}) to {}", type, receiverPublicKey);
             coin = TransactionOperator.send(coin, privateKey, receiverPublicKey);
             requestRandom(coin);
             return true;
         } else {
-            err("Illegal Operation!");
+            logger.warn("Illegal Operation!");
             return false;
         }
     }
@@ -102,28 +271,35 @@ public class Node implements RemoteNode, NodeOperator {
      */
     public boolean wrongTranaction(int mode) {
         String type = "";
-        List<Block> newBlockList = new ArrayList<>(blockList);
+        List<Block> newBlockList;
+        Hash lastBlockHash;
+        int difficulty;
+        synchronized (this) {
+            newBlockList = new ArrayList<>(blockList);
+            lastBlockHash = getLastBlockHash();
+            difficulty = state.getNextDifficulty();
+        }
         Coin myCoin = new Coin(publicKey);
-        Block block;
+        BlockTemplate block;
         if (mode == 1) {
             type = "Too short chain";
             newBlockList.clear();
-            block = new Block(null, myCoin);
-            ProofOfWork.find(block, -1);
+            block = new BlockTemplate(null, myCoin, ProofOfWork.INITIAL_DIFFICULTY);
+            miner.find(block, -1);
         } else if (mode == 2) {
-            block = new Block(getLastBlockHash(), myCoin);
-            block.nonce = "aaaaaaaaaa";
+            block = new BlockTemplate(lastBlockHash, myCoin, difficulty);
+            block.nonce = new Nonce(new byte[Nonce.LENGTH]);
             type = "Not mined block";
         } else if (mode == 3) {
-            block = new Block("aaaa", myCoin);
-            ProofOfWork.find(block, -1);
+            block = new BlockTemplate(DigitalSign.hash("aaaa"), myCoin, difficulty);
+            miner.find(block, -1);
             type = "Illegal previous block hash";
         } else {
-            err("Illegal Operation!");
+            logger.warn("Illegal Operation!");
             return false;
         }
-        newBlockList.add(block);
-        log("HACK! Broadcast wrong transaction(" + type + ")");
+        newBlockList.add(block.toBlock());
+        logger.info("HACK! Broadcast wrong transaction({})", type);
         blockBroadcast(newBlockList);
         return true;
     }
@@ -134,15 +310,20 @@ public class Node implements RemoteNode, NodeOperator {
      * @param receiverPublicKey 送り先の公開鍵
      * @return True:成功
      */
-    public boolean send(String receiverPublicKey) {
-        if (wallet.containsKey(publicKey) && wallet.get(publicKey).size() > 0) {
-            log("Send coin to " + receiverPublicKey);
-            Coin coin = wallet.get(publicKey).get(0);
+    public boolean send(Key receiverPublicKey) {
+        Coin coin = null;
+        synchronized (this) {
+            if (getWallet() > 0) {
+                coin = state.getCoins(publicKey).iterator().next();
+            }
+        }
+        if (coin != null) {
+            logger.info("Send coin to {}", receiverPublicKey);
             coin = TransactionOperator.send(coin, privateKey, receiverPublicKey);
             requestRandom(coin);
             return true;
         } else {
-            err("No coins!");
+            logger.warn("No coins!");
             return false;
         }
     }
@@ -151,118 +332,969 @@ public class Node implements RemoteNode, NodeOperator {
      * 空のトランザクションを処理する(採掘目的)
      */
     public void mining() {
-        log("Trying digging new coin...");
-        while (!requestTransaction(null)) {
+        logger.info("Trying digging new coin...");
+        while (!Boolean.TRUE.equals(await(requestTransaction(null, this)))) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
         }
     }
 
     /**
-     * 今のコインの数(Walletには全ノードのコインの情報が入っている)
+     * 今のコインの数(ChainStateには全ノードのコインの情報が入っている)
      */
-    public int getWallet() {
-        return this.wallet.containsKey(publicKey) ? this.wallet.get(publicKey).size() : 0;
+    public synchronized int getWallet() {
+        return state.getBalance(publicKey);
     }
 
     /**
      * トランザクションのリクエストを受けた<br>
-     * ブロックの採掘を開始し、10000回試行して見つかったらブロックチェーンにつなげてノードにブロードキャスト
+     * コインを検証してMempoolに入れ、Mempoolにあるトランザクションをまとめてブロックの採掘を開始する。
+     * 全スレッドで合計10000回試行して見つかったらブロックチェーンにつなげてノードにブロードキャスト
      * 
      * @param input ノードから送られてきた情報(コイン)
+     * @param sender 送り主のノード
+     * @return True:ブロックを見つけた、またはコインが正しくないので処理を終えた
      */
-    public boolean requestTransaction(byte[] input) {
-        Coin myCoin = new Coin(publicKey);
-        Block block = new Block(getLastBlockHash(), myCoin);
-
-        if (input != null) {
-            Coin coin = (Coin) Common.deserialize(input);
-            block.coins.add(coin);
+    public CompletableFuture<Boolean> requestTransaction(byte[] input, RemoteNode sender) {
+        if (throttled(sender)) {
+            return CompletableFuture.completedFuture(true);
         }
+        return inbox.call(() -> transaction(input, sender));
+    }
 
-        if (ProofOfWork.find(block, 10000)) {
-            log("New block found:" + block);
-            List<Block> newBlockList = new ArrayList<>(blockList);
-            newBlockList.add(block);
-            blockBroadcast(newBlockList);
-            return true;
-        } else {
-            return false;
+    /**
+     * 新しいトランザクションの通知を受けた<br>
+     * 正しければMempoolに入れて、初めて受け取ったものであれば送り主以外の隣のノードに中継する
+     * 
+     * @param input 新しいトランザクション(コイン)
+     * @param sender 送り主のノード
+     */
+    public void announceTransaction(byte[] input, RemoteNode sender) {
+        if (throttled(sender)) {
+            return;
         }
+        inbox.post(() -> receiveTransaction(input, sender));
     }
 
     /**
-     * 新しいブロックチェーンを同期する
+     * 新しいブロックチェーンを同期する。調べ方はintakeを参照
      * 
      * @param input ノードから送られてきた情報(ブロックチェーン)
+     * @param sender 送り主のノード
+     */
+    public void syncBlock(byte[] input, RemoteNode sender) {
+        long received = System.nanoTime();
+        if (throttled(sender)) {
+            return;
+        }
+        inbox.post(() -> {
+            int ret = intake(input);
+            if (ret == UNKNOWN_ANCESTOR) {
+                ret = 2;
+                logger.warn("Block rejected(2. {}): unknown ancestor", MESSAGES[1]);
+                metrics.blockRejected(ret);
+            }
+            metrics.recordSync(input.length, System.nanoTime() - received);
+            record(sender, ret > 0 || ret == BROKEN);
+        });
+    }
+
+    /**
+     * 新しいブロックの通知を受けた<br>
+     * 自分の最新のブロックに続くブロックならそのままつなげる。そうでなければ送り主に自分のチェーンのハッシュ(ロケータ)を送り、
+     * 共通の祖先より後のブロックだけを受け取る。<br>
+     * 既に受け取ったブロックは無視し、チェーンにつなげた場合は送り主以外の隣のノードに中継する
+     * 
+     * @param height 新しいブロックを含めたチェーンの長さ
+     * @param input 新しいブロック
+     * @param sender 送り主のノード
+     */
+    public void announceBlock(int height, byte[] input, RemoteNode sender) {
+        long received = System.nanoTime();
+        if (throttled(sender)) {
+            return;
+        }
+        inbox.post(() -> {
+            int ret = receiveBlock(height, input, sender, received);
+            if (ret != FETCHING) {
+                record(sender, ret > 0 || ret == BROKEN);
+            }
+        });
+    }
+
+
+    /**
+     * ロケータに含まれるハッシュのうち自分のチェーンにある最新のものを共通の祖先とし、それより後のブロックを返す<br>
+     * 共通の祖先が見つからなければチェーン全体を返す。MAX_REPLY_BYTESを超える分と、読めないブロック(BlockStore)から後は返さない
+     * 
+     * @param locator 相手のチェーンのハッシュのリスト(新しい順)
+     * @return ブロックのリスト
+     */
+    public CompletableFuture<byte[]> requestBlocks(byte[] locator) {
+        List<Block> blocks = new ArrayList<>();
+        synchronized (this) {
+            int size = Codec.sizeOf(Collections.emptyList());
+            for (int i = getForkPoint(locator); i < blockList.size(); i++) {
+                Block block = blockList.get(i);
+                if (block == null) {
+                    // 間を飛ばすとつながらないので、読めないブロックの手前までを返す
+                    logger.warn("Blocks truncated(Block {} not readable)", i);
+                    break;
+                }
+                size += Codec.sizeOf(block);
+                if (size > MAX_REPLY_BYTES && !blocks.isEmpty()) {
+                    break;
+                }
+                blocks.add(block);
+            }
+        }
+        return CompletableFuture.completedFuture(Common.serialize(blocks));
+    }
+
+    /**
+     * requestBlocksと同じく共通の祖先より後のブロックの、ヘッダだけを返す(LightNode)。
+     * MAX_REPLY_BYTESを超える分と、読めないブロックから後は返さない
+     * 
+     * @param locator 相手のチェーンのハッシュのリスト(新しい順)
+     * @return ブロックヘッダのリスト
+     */
+    public CompletableFuture<byte[]> requestHeaders(byte[] locator) {
+        List<BlockHeader> headers = new ArrayList<>();
+        synchronized (this) {
+            int from = getForkPoint(locator);
+            // ヘッダは固定長(型とBlockHeader.SIZE)
+            int to = (int) Math.min(blockList.size(), (long) from + MAX_REPLY_BYTES / (1 + BlockHeader.SIZE));
+            for (int i = from; i < to; i++) {
+                Block block = blockList.get(i);
+                if (block == null) {
+                    logger.warn("Headers truncated(Block {} not readable)", i);
+                    break;
+                }
+                headers.add(block.getHeader());
+            }
+        }
+        return CompletableFuture.completedFuture(Common.serialize(headers));
+    }
+
+    /**
+     * 持ち主の今のコイン(最新のトランザクション)と、それがブロックに含まれることの証明を返す(LightNode)。
+     * MAX_REPLY_BYTESを超える分は返さない
+     * 
+     * @param publicKey 持ち主の公開鍵(Key)
+     * @return コインごとに[コイン, ブロックの位置(Integer), 証明(MerkleProof.toList)]のリスト
      */
-    public void syncBlock(byte[] input) {
+    public CompletableFuture<byte[]> requestCoins(byte[] publicKey) {
+        Object key = Common.deserialize(publicKey);
+        List<Object> coins = new ArrayList<>();
+        int size = Codec.sizeOf(coins);
+        if (key instanceof Key) {
+            synchronized (this) {
+                for (Coin coin : state.getCoins((Key) key)) {
+                    int height = state.getConfirmedHeight(coin.id);
+                    Block block = height < 0 ? null : blockList.get(height);
+                    if (block == null) {
+                        // ブロックが読めなければ(BlockStoreの読み込みの失敗)証明を作れないので、そのコインは返さない
+                        logger.warn("Coin skipped(Block {} not readable): {}", height, coin);
+                        continue;
+                    }
+                    MerkleProof proof = block.getProof(coin);
+                    if (proof != null) {
+                        List<Object> item = Arrays.asList(coin, height, proof.toList());
+                        size += Codec.sizeOf(item);
+                        if (size > MAX_REPLY_BYTES) {
+                            break;
+                        }
+                        coins.add(item);
+                    }
+                }
+            }
+        }
+        return CompletableFuture.completedFuture(Common.serialize(coins));
+    }
+
+    /**
+     * ロケータに含まれるハッシュのうち自分のチェーンにある最新のものの次の位置。見つからなければ0
+     */
+    private int getForkPoint(byte[] locator) {
         @SuppressWarnings("unchecked")
-        List<Block> newBlockList = (List<Block>) Common.deserialize(input);
-        if (newBlockList.size() <= blockList.size()) {
-            err("Block rejected(0. New block length is too short)");
+        List<Object> hashes = (List<Object>) Common.deserialize(locator);
+        if (hashes != null) {
+            for (Object hash : hashes) {
+                Integer height = heights.get(hash);
+                if (height != null) {
+                    return height + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private boolean transaction(byte[] input, RemoteNode sender) {
+        BlockTemplate template;
+        int ret = -1;
+        synchronized (this) {
+            if (input != null) {
+                Coin coin = readCoin(input);
+                if (coin == null) {
+                    record(sender, true);
+                    return true;
+                }
+                ret = mempool.add(coin, state);
+                record(sender, ret >= 3 && ret <= 5);
+                if (ret > 0 && ret != Mempool.DUPLICATE) {
+                    logger.log(Logger.Level.WARN, "Transaction rejected({}. {}): {}", ret, MESSAGES[ret - 1], coin);
+                    metrics.transactionRejected(ret);
+                    return true;
+                }
+            }
+
+            Coin myCoin = new Coin(publicKey);
+            template = new BlockTemplate(getLastBlockHash(), myCoin, state.getNextDifficulty());
+            template.coins.addAll(mempool.select());
+        }
+        if (ret == 0) {
+            metrics.transactionAccepted();
+            relayTransaction(input, this);
+        }
+
+        // 採掘中はロックを取らない(他のノードからのブロックの要求を止めないように)
+        if (!miner.find(template, 10000)) {
+            return false;
+        }
+        Block block = template.toBlock();
+
+        int height;
+        synchronized (this) {
+            height = blockList.size() + 1;
+            mempool.recordBlock(block.coins.size() - 1);
+            if (Logger.isEnabled(Logger.Level.INFO)) {
+                logger.info("New block found:{}{}", block, String.format(" (%.0f hash/s, %d tx, %d pending)",
+                        miner.getHashRate(), block.coins.size() - 1, mempool.getSize()));
+            }
+        }
+        blockAnnounce(height, block);
+        return true;
+    }
+
+    private void receiveTransaction(byte[] input, RemoteNode sender) {
+        synchronized (this) {
+            Coin coin = readCoin(input);
+            if (coin == null) {
+                record(sender, true);
+                return;
+            }
+            int ret = mempool.add(coin, state);
+            record(sender, ret >= 3 && ret <= 5);
+            if (ret == Mempool.DUPLICATE) {
+                return;
+            }
+            if (ret > 0) {
+                logger.log(Logger.Level.WARN, "Transaction rejected({}. {}): {}", ret, MESSAGES[ret - 1], coin);
+                metrics.transactionRejected(ret);
+                return;
+            }
+            metrics.transactionAccepted();
+        }
+        relayTransaction(input, sender);
+    }
+
+    private int receiveBlock(int height, byte[] input, RemoteNode sender, long received) {
+        if (input.length > MAX_BLOCK_BYTES) {
+            logger.warn("Block rejected(Too large: {} bytes)", input.length);
+            metrics.blockRejected(BROKEN);
+            return BROKEN;
+        }
+        Object obj = Common.deserialize(input);
+        if (!(obj instanceof Block) || height < 1) {
+            logger.warn("Block rejected(Broken data)");
+            metrics.blockRejected(BROKEN);
+            return BROKEN;
+        }
+        Block block = (Block) obj;
+        Hash hash = block.getHash();
+        byte[] locator;
+        synchronized (this) {
+            // 受け取ったことにするのは検証が通ってから(coinIdを書き換えた同じハッシュのブロックを先に送られても、正しいものを捨てない)
+            if (seen.contains(hash) || heights.containsKey(hash)) {
+                return IGNORED;
+            }
+            // 採掘に成功していないブロックは、枝を作ったり送り主に問い合わせたりする前に捨てる
+            if (!ProofOfWork.checkHash(block)) {
+                logger.warn("Block rejected(1. {}): {}", MESSAGES[0], block);
+                metrics.blockRejected(1);
+                return 1;
+            }
+            if (!ProofOfWork.checkCoinId(block)) {
+                logger.warn("Block rejected(3. {}): {}", MESSAGES[2], block);
+                metrics.blockRejected(3);
+                return 3;
+            }
+            // 親が本線か枝にあれば、問い合わせずに手元のブロックだけで枝を作る
+            List<Block> branch = tree.branch(block.prevHash);
+            Hash root = branch.isEmpty() ? block.prevHash : branch.get(0).prevHash;
+            if (root == null || heights.containsKey(root)) {
+                int start = branch.isEmpty() ? connect(Collections.singletonList(block)) : tree.getHeight(
+                        branch.get(0).getHash());
+                branch.add(block);
+                int ret = accept(start, branch);
+                metrics.recordSync(input.length, System.nanoTime() - received);
+                if (ret == 0 || ret == NOT_MORE_WORK) {
+                    seen.add(hash);
+                }
+                if (ret != 0) {
+                    return ret;
+                }
+                locator = null;
+            } else {
+                // 長さ(送り主の主張)では決めない。難易度の違いで短くても仕事量が多いことがあるので、
+                // 共通の祖先より後のブロックを受け取ってintakeで仕事量を比べる
+                locator = Common.serialize(getLocator());
+            }
+        }
+        if (locator == null) {
+            relayBlock(height, input, sender);
+            return 0;
+        }
+        if (sender == null) {
+            // 送り主が分からなければ共通の祖先より後を問い合わせられない
+            logger.warn("Block rejected(Unknown ancestor): {}", block);
+            return UNKNOWN_ANCESTOR;
+        }
+
+        return fetchBlocks(height, input, block, sender, received, locator, input.length);
+    }
+
+    /**
+     * 送り主にロケータを送り、共通の祖先より後のブロックを問い合わせる。
+     * 問い合わせ中はロックを取らず、共有の受信箱のスレッドも止めない(応答が来たら続きを受信箱で処理する)
+     * 
+     * @param locator 自分のチェーンのロケータ
+     * @param bytes ここまでに受け取ったバイト数
+     * @return FETCHING
+     */
+    private int fetchBlocks(int height, byte[] input, Block block, RemoteNode sender, long received, byte[] locator,
+            long bytes) {
+        inbox.postOnComplete(sender.requestBlocks(locator), (reply, e) -> {
+            if (e != null) {
+                logger.error("Request failed({})", e);
+            }
+            int ret = receiveBlocks(height, input, block, reply, sender, received, bytes);
+            if (ret != FETCHING) {
+                record(sender, ret > 0 || ret == BROKEN);
+            }
+        });
+        return FETCHING;
+    }
+
+    /**
+     * fetchBlocksで送り主に問い合わせたブロックのリストを処理する
+     * 
+     * @param reply 送り主の応答。失敗した場合はnull
+     * @param bytes これまでに受け取ったバイト数
+     * @return intakeの結果。続きを問い合わせた場合はFETCHING
+     */
+    private int receiveBlocks(int height, byte[] input, Block block, byte[] reply, RemoteNode sender, long received,
+            long bytes) {
+        int ret = reply == null ? UNKNOWN_ANCESTOR : intake(reply);
+        bytes += reply == null ? 0 : reply.length;
+        if (ret == 0) {
+            byte[] locator;
+            synchronized (this) {
+                // 応答はMAX_REPLY_BYTESで打ち切られるので、通知されたブロックまで届いていなければ続きを問い合わせる
+                locator = heights.containsKey(block.getHash()) ? null : Common.serialize(getLocator());
+            }
+            if (locator != null) {
+                return fetchBlocks(height, input, block, sender, received, locator, bytes);
+            }
+        }
+        if (ret == UNKNOWN_ANCESTOR) {
+            logger.warn("Block rejected(Unknown ancestor): {}", block);
+        } else if (ret == 0 || ret == NOT_MORE_WORK) {
+            synchronized (this) {
+                seen.add(block.getHash());
+            }
+        }
+        metrics.recordSync(bytes, System.nanoTime() - received);
+        if (ret == 0) {
+            relayBlock(height, input, sender);
+        }
+        return ret;
+    }
+
+    /**
+     * 受け取ったブロックのリストを安い検査から順に調べ、最後まで通ったものだけを承認する。
+     * 自分のチェーンと同じ部分はデシリアライズしない
+     * <ol>
+     * <li>コインを読まずに走査できる形式か、各ブロックがMAX_BLOCK_BYTES以下か
+     * <li>最初のブロックの前のブロックが自分のチェーンにあるか(前のブロックのハッシュのつながり)
+     * <li>自分のチェーンと違う部分の難易度が範囲内で、仕事量の合計が今のチェーンより多いか
+     * (少なくても、枝として残せる深さと数であれば次へ進み、acceptで枝として残す)
+     * <li>最後のブロックだけをデシリアライズして、採掘に成功しているか
+     * <li>違う部分だけをデシリアライズしてaccept(コインの履歴の検証)
+     * </ol>
+     * 1-3で使う値は送り主の主張(BlockSummary)なので、拒否にだけ使い、承認はデシリアライズしたブロックで決める
+     * 
+     * @param input List&lt;Block&gt;のバイナリ
+     * @return 0:承認した NOT_MORE_WORK, BROKEN, UNKNOWN_ANCESTOR, 1-9:承認しなかった
+     */
+    private int intake(byte[] input) {
+        List<BlockSummary> summaries = Codec.scanBlocks(input);
+        if (summaries == null) {
+            logger.warn("Block rejected(Broken data)");
+            metrics.blockRejected(BROKEN);
+            return BROKEN;
+        }
+        for (BlockSummary summary : summaries) {
+            if (summary.getLength() > MAX_BLOCK_BYTES) {
+                logger.warn("Block rejected(Too large: {} bytes)", summary.getLength());
+                metrics.blockRejected(BROKEN);
+                return BROKEN;
+            }
+        }
+        int same;
+        synchronized (this) {
+            if (summaries.isEmpty()) {
+                logger.warn(LESS_WORK);
+                metrics.blockRejected(0);
+                return NOT_MORE_WORK;
+            }
+            Hash root = summaries.get(0).prevHash;
+            Integer height = root == null ? null : heights.get(root);
+            if (root != null && height == null) {
+                return UNKNOWN_ANCESTOR;
+            }
+            int start = root == null ? 0 : height + 1;
+            // ブロックのハッシュは次のブロックのprevHashとして主張されている
+            same = 0;
+            while (same + 1 < summaries.size() && start + same < hashList.size()
+                    && hashList.get(start + same).equals(summaries.get(same + 1).prevHash)) {
+                same++;
+            }
+            BigInteger work = BigInteger.ZERO;
+            for (BlockSummary summary : summaries.subList(same, summaries.size())) {
+                if (summary.difficulty < ProofOfWork.MIN_DIFFICULTY
+                        || summary.difficulty > ProofOfWork.MAX_DIFFICULTY) {
+                    logger.warn("Block rejected(1. {}): difficulty {}", MESSAGES[0], summary.difficulty);
+                    metrics.blockRejected(1);
+                    return 1;
+                }
+                work = work.add(ProofOfWork.work(summary.difficulty));
+            }
+            if (work.compareTo(work(blockList, start + same)) <= 0
+                    && (start + same < blockList.size() - SIDE_DEPTH || summaries.size() - same > SIDE_DEPTH)) {
+                logger.warn(LESS_WORK);
+                metrics.blockRejected(0);
+                return NOT_MORE_WORK;
+            }
+        }
+        Block tip = Codec.decodeBlock(input, summaries.get(summaries.size() - 1));
+        if (tip == null) {
+            logger.warn("Block rejected(Broken data)");
+            metrics.blockRejected(BROKEN);
+            return BROKEN;
+        }
+        if (!ProofOfWork.checkHash(tip)) {
+            logger.warn("Block rejected(1. {}): {}", MESSAGES[0], tip);
+            metrics.blockRejected(1);
+            return 1;
+        }
+        List<Block> blocks = new ArrayList<>();
+        for (BlockSummary summary : summaries.subList(same, summaries.size() - 1)) {
+            Block block = Codec.decodeBlock(input, summary);
+            if (block == null) {
+                logger.warn("Block rejected(Broken data)");
+                metrics.blockRejected(BROKEN);
+                return BROKEN;
+            }
+            blocks.add(block);
+        }
+        blocks.add(tip);
+        synchronized (this) {
+            // 調べている間にチェーンが変わったかもしれないので、つながる位置を改めて探す
+            int start = connect(blocks);
+            if (start < 0) {
+                return UNKNOWN_ANCESTOR;
+            }
+            int common = common(start, blocks);
+            return accept(start + common, blocks.subList(common, blocks.size()));
+        }
+    }
+
+    /**
+     * 受け取ったトランザクションを読む。大きすぎる、または壊れていればnull
+     */
+    private Coin readCoin(byte[] input) {
+        Object obj = input.length > MAX_TRANSACTION_BYTES ? null : Common.deserialize(input);
+        if (!(obj instanceof Coin)) {
+            logger.warn("Transaction rejected(Broken data)");
+            metrics.transactionRejected(BROKEN);
+            return null;
+        }
+        return (Coin) obj;
+    }
+
+    /**
+     * 送り主のメッセージを捨てるかどうか(PeerMonitor)。自分は対象にしない
+     */
+    private boolean throttled(RemoteNode sender) {
+        return sender != this && peers.isThrottled(sender);
+    }
+
+    /**
+     * 送り主のメッセージを処理した結果を記録する
+     * 
+     * @param invalid True:不正なメッセージだった
+     */
+    private void record(RemoteNode sender, boolean invalid) {
+        if (sender != this && peers.record(sender, invalid)) {
+            logger.warn("Throttling {} for {} ms (too many rejected messages)",
+                    sender instanceof Node ? ((Node) sender).getName() : sender, PeerMonitor.THROTTLE_TIME);
+        }
+    }
+
+    /**
+     * 自分のチェーンのsame個目より後を新しいブロックに入れ替える。自分のチェーンと同じ部分はそのまま残す<br>
+     * 入れ替える部分の仕事量が新しいブロックの方が多い場合だけ承認する。
+     * 分岐点までの巻き戻しは状態の差分で行い、新しいブロックだけを検証する(分岐の深さに比例する)。
+     * 承認しなかった(仕事量が少ない)ブロックと本線から外したブロックは枝として残す
+     * 
+     * @param same 自分のチェーンと同じ部分の長さ
+     * @param blocks 新しいブロック
+     * @return 0:新しいチェーンを承認した NOT_MORE_WORK, 1-9:承認しなかった(ProofOfWork.validateのNG)
+     */
+    private int accept(int same, List<Block> blocks) {
+        if (work(blocks, 0).compareTo(work(blockList, same)) <= 0) {
+            logger.warn(LESS_WORK);
+            metrics.blockRejected(0);
+            keep(same, blocks);
+            return NOT_MORE_WORK;
+        }
+        int rollback = blockList.size() - same;
+        // スナップショットから戻した状態はスナップショットより前には巻き戻せないので、その場合はチェーン全体を検証する
+        boolean incremental = rollback <= state.getUndoDepth();
+        long start = System.nanoTime();
+        int ret;
+        if (incremental) {
+            for (int i = 0; i < rollback; i++) {
+                state.rollback();
+            }
+            ret = ProofOfWork.validate(blocks, state);
         } else {
-            int ret = ProofOfWork.validate(newBlockList);
-            Block latest = newBlockList.get(newBlockList.size() - 1);
-            if (ret == 0) {
-                log("New block accepted: " + latest);
-                this.blockList.clear();
-                this.blockList.addAll(newBlockList);
-
-                Map<String, String> map = new HashMap<>();
-                Map<String, Coin> coins = new HashMap<>();
-                for (Block block : newBlockList) {
-                    for (Coin coin : block.coins) {
-                        map.put(coin.id, coin.tx.receiverPublicKey);
-                        coins.put(coin.id, coin);
-                    }
+            ret = ProofOfWork.validate(join(same, blocks));
+        }
+        metrics.recordValidate(System.nanoTime() - start);
+        if (verify && incremental) {
+            int full = ProofOfWork.validate(join(same, blocks));
+            if (full != ret) {
+                logger.error("Validation mismatch(incremental: {}, full: {})", ret, full);
+                ret = full;
+            }
+        }
+
+        Block latest = blocks.get(blocks.size() - 1);
+        if (ret != 0) {
+            if (incremental) {
+                // 巻き戻した状態を元に戻す
+                for (int i = same; i < blockList.size(); i++) {
+                    state.apply(blockList.get(i), hashList.get(i));
                 }
+            }
+            tree.remove(blocks);
+            logger.log(Logger.Level.WARN, "Block rejected({}. {}): {}", ret, MESSAGES[ret - 1], latest);
+            metrics.blockRejected(ret);
+            return ret;
+        }
+
+        logger.info("New block accepted: {}", latest);
+        int transactions = 0;
+        List<Block> removed = new ArrayList<>();
+        for (int i = blockList.size() - 1; i >= same; i--) {
+            heights.remove(hashList.remove(i));
+            Block block = blockList.remove(i);
+            if (block == null) {
+                // 読めないブロックのトランザクションはMempoolに戻せない
+                continue;
+            }
+            transactions -= block.coins.size() - 1;
+            removed.add(0, block);
+        }
+        if (!incremental) {
+            state.clear();
+            for (int i = 0; i < same; i++) {
+                state.apply(blockList.get(i), hashList.get(i));
+            }
+            snapshotHeight = Math.min(snapshotHeight, same);
+        }
+        for (Block block : blocks) {
+            Hash hash = block.getHash();
+            heights.put(hash, blockList.size());
+            blockList.add(block);
+            hashList.add(hash);
+            state.apply(block, hash);
+            transactions += block.coins.size() - 1;
+        }
+        tree.remove(blocks);
+        tree.add(same, removed);
+        tree.prune(blockList.size());
+        metrics.blockAccepted(blocks.size(), rollback, transactions);
+        List<Block> changed = new ArrayList<>(removed);
+        changed.addAll(blocks);
+        mempool.prune(changed, state);
+        int restored = mempool.restore(removed, state);
+        if (restored > 0) {
+            logger.info("Transactions restored to mempool: {}", restored);
+        }
+        if (snapshots != null && blockList.size() >= snapshotHeight + SNAPSHOT_INTERVAL) {
+            saveSnapshot();
+        }
+        return 0;
+    }
+
+    /**
+     * 仕事量で負けたブロックを枝として残す。採掘に成功していないブロックから後と、本線の先端から深すぎるものは残さない
+     */
+    private void keep(int same, List<Block> blocks) {
+        if (same < blockList.size() - SIDE_DEPTH) {
+            return;
+        }
+        int n = 0;
+        while (n < blocks.size() && ProofOfWork.checkHash(blocks.get(n))) {
+            n++;
+        }
+        tree.add(same, blocks.subList(0, n));
+        tree.prune(blockList.size());
+    }
+
+    /**
+     * from個目から後のブロックの仕事量の合計
+     */
+    private static BigInteger work(List<Block> blocks, int from) {
+        BigInteger work = BigInteger.ZERO;
+        for (int i = from; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (block != null) {
+                // 読めないブロック(BlockStore)は仕事量に数えない。他のノードのチェーンに入れ替わりやすくなる
+                work = work.add(ProofOfWork.work(block));
+            }
+        }
+        return work;
+    }
+
+    private Hash getLastBlockHash() {
+        return hashList.size() > 0 ? hashList.get(hashList.size() - 1) : null;
+    }
+
+    /**
+     * 自分のチェーンのロケータ。最新の10個のあとは間隔を倍々にして、最後にジェネシスブロックを入れる
+     */
+    private List<Hash> getLocator() {
+        return getLocator(hashList);
+    }
+
+    /**
+     * チェーンのロケータ(LightNodeと共通)
+     *
+     * @param hashList チェーンのハッシュのリスト(古い順)
+     * @return ロケータ(新しい順)
+     */
+    static List<Hash> getLocator(List<Hash> hashList) {
+        List<Hash> locator = new ArrayList<>();
+        int step = 1;
+        for (int i = hashList.size() - 1; i > 0; i -= step) {
+            locator.add(hashList.get(i));
+            if (locator.size() >= 10) {
+                step *= 2;
+            }
+        }
+        if (hashList.size() > 0) {
+            locator.add(hashList.get(0));
+        }
+        return locator;
+    }
 
-                this.wallet.clear();
-                for (Map.Entry<String, String> entry : map.entrySet()) {
-                    String pkey = entry.getValue();
-                    if (!wallet.containsKey(pkey)) {
-                        wallet.put(pkey, new ArrayList<Coin>());
+    /**
+     * 受け取ったブロックを自分のチェーンの共通の祖先につなげる
+     * 
+     * @return 最初のブロックが入る位置。祖先が見つからなければ-1
+     */
+    private int connect(List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return -1;
+        }
+        Hash prevHash = blocks.get(0).prevHash;
+        if (prevHash == null) {
+            return 0;
+        }
+        Integer height = heights.get(prevHash);
+        return height == null ? -1 : height + 1;
+    }
+
+    /**
+     * start個目から置くブロックのうち、自分のチェーンと同じものの数
+     */
+    private int common(int start, List<Block> blocks) {
+        int same = 0;
+        while (same < blocks.size() && start + same < hashList.size()
+                && hashList.get(start + same).equals(blocks.get(same).getHash())) {
+            same++;
+        }
+        return same;
+    }
+
+    /**
+     * 自分のチェーンのsame個目までに新しいブロックをつなげたチェーン(全体を検証する時に使う)
+     */
+    private List<Block> join(int same, List<Block> blocks) {
+        List<Block> newBlockList = new ArrayList<>(blockList.subList(0, same));
+        newBlockList.addAll(blocks);
+        return newBlockList;
+    }
+
+    /**
+     * 保存されているチェーンを読み込む。チェーンの状態はブロックを順に反映して作り直す
+     */
+    private void load() {
+        List<Hash> hashes = store.getHashes();
+        // 保存されているチェーンに合う最新のスナップショットを使い、それより後のブロックだけを反映する
+        for (int height : snapshots.getHeights()) {
+            byte[] data = snapshots.load(height);
+            if (height <= hashes.size() && data != null && state.restore(data) && state.getHeight() == height
+                    && (height == 0 || hashes.get(height - 1).equals(state.getTipHash()))) {
+                snapshotHeight = height;
+                break;
+            }
+            logger.warn("Snapshot ignored: {}", height);
+            state.clear();
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            Hash hash = hashes.get(i);
+            if (i >= snapshotHeight) {
+                Block block = blockList.get(i);
+                if (block == null) {
+                    // 読めないブロック(古い形式など)から後は捨てて、他のノードから同期し直す
+                    logger.error("Unreadable block: {}, dropped {} blocks", i, hashes.size() - i);
+                    while (blockList.size() > i) {
+                        blockList.remove(blockList.size() - 1);
                     }
-                    wallet.get(pkey).add(coins.get(entry.getKey()));
+                    break;
                 }
+                state.apply(block, hash);
+            }
+            hashList.add(hash);
+            heights.put(hash, i);
+        }
+        if (!hashList.isEmpty()) {
+            logger.info("Chain loaded: {} blocks (snapshot at {})", hashList.size(), snapshotHeight);
+        }
+    }
 
-            } else {
-                String[] messages = { "Not mined block", "Illegal previous block hash", "Not mined coin",
-                        "Illegal previous coin hash", "Other's coin" };
-                err("Block rejected(" + ret + ". " + messages[ret - 1] + "): " + latest);
+    /**
+     * 保存されている鍵を読む。無ければ作って保存する
+     * 
+     * @return 公開鍵, 秘密鍵
+     */
+    private static Key[] loadKeys(File file) throws IOException {
+        if (file.exists()) {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() >= 2) {
+                return new Key[] { Key.fromHex(lines.get(0)), Key.fromHex(lines.get(1)) };
             }
         }
+        Key[] keys = DigitalSign.generateKey();
+        Files.write(file.toPath(), Arrays.asList(keys[0].toString(), keys[1].toString()), StandardCharsets.UTF_8);
+        return keys;
     }
 
-    private String getLastBlockHash() {
-        return blockList.size() > 0 ? DigitalSign.hash(blockList.get(blockList.size() - 1)) : null;
+    /**
+     * 今の状態のスナップショットを保存する。スナップショットまでのブロックは先にディスクに書き出しておく
+     */
+    private void saveSnapshot() {
+        try {
+            store.sync();
+            snapshots.save(blockList.size(), state.snapshot());
+            snapshotHeight = blockList.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     private void blockBroadcast(List<Block> newBlockList) {
+        byte[] data = Common.serialize(newBlockList);
+        for (RemoteNode n : nodes) {
+            n.syncBlock(data, this);
+        }
+    }
+
+    /**
+     * 採掘したブロックを自分に通知する。自分のチェーンにつなげたら隣のノードに中継される
+     */
+    private void blockAnnounce(int height, Block block) {
+        announceBlock(height, Common.serialize(block), this);
+    }
+
+    private void relayBlock(int height, byte[] data, RemoteNode sender) {
+        for (RemoteNode n : nodes) {
+            if (n != this && !n.equals(sender)) {
+                n.announceBlock(height, data, this);
+            }
+        }
+    }
+
+    private void relayTransaction(byte[] data, RemoteNode sender) {
         for (RemoteNode n : nodes) {
-            n.syncBlock(Common.serialize(newBlockList));
+            if (n != this && !n.equals(sender)) {
+                n.announceTransaction(data, this);
+            }
         }
     }
 
     private void requestRandom(Coin coin) {
-        while (true) {
-            RemoteNode n = this.nodes.get((int) (Math.random() * nodes.size()));
-            if (n.requestTransaction(Common.serialize(coin))) {
+        byte[] data = Common.serialize(coin);
+        while (!Thread.currentThread().isInterrupted()) {
+            RemoteNode n = this.nodes.get(random.nextInt(nodes.size()));
+            if (Boolean.TRUE.equals(await(n.requestTransaction(data, this)))) {
                 break;
             }
         }
     }
 
-    private void log(String message) {
-        System.out.println(this.name + "(" + publicKey + "): " + message);
-        System.out.flush();
+    /**
+     * リクエストの結果を待つ。遅いノードで止まらないように一定時間で諦める
+     * 
+     * @return 結果。失敗した場合はnull
+     */
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Request failed({})", e);
+        }
+        return null;
+    }
+
+    /**
+     * 受信箱。未処理のメッセージ数などの統計に使う
+     */
+    public Inbox getInbox() {
+        return inbox;
+    }
+
+    /**
+     * 未承認のトランザクションの置き場。ブロックの大きさなどの設定と統計に使う
+     */
+    public Mempool getMempool() {
+        return mempool;
+    }
+
+    /**
+     * 統計。JMXに登録する場合はregisterを呼ぶ
+     */
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 隣のノードごとの不正なメッセージの記録
+     */
+    public PeerMonitor getPeerMonitor() {
+        return peers;
+    }
+
+    /**
+     * トランザクションを送るノードを選ぶ乱数の種の設定。シミュレーションを同じ順番で再現するのに使う
+     * 
+     * @param seed 乱数の種
+     */
+    public void setSeed(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 検証モードの設定。Trueの場合はチェーンの続きのブロックでもチェーン全体を検証し、差分の検証と結果が違えば報告する
+     * 
+     * @param verify True:検証モード
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * 保存先を閉じる。ファイルに保存していなければ何もしない
+     */
+    public synchronized void close() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 承認済みのチェーンの長さ
+     */
+    public synchronized int getHeight() {
+        return blockList.size();
+    }
+
+    /**
+     * 次のブロックの難易度
+     */
+    public synchronized int getDifficulty() {
+        return state.getNextDifficulty();
+    }
+
+    /**
+     * 枝(本線から外れたブロック)の数
+     */
+    public synchronized int getSideBlocks() {
+        return tree.size();
+    }
+
+    /**
+     * Mempoolに置かれているトランザクションの数
+     */
+    public synchronized int getMempoolSize() {
+        return mempool.getSize();
+    }
+
+    /**
+     * 隣のノードの数
+     */
+    public int getPeerCount() {
+        return nodes.size() - 1;
     }
 
-    private void err(String message) {
-        System.err.println(this.name + "(" + publicKey + "): " + message);
-        System.err.flush();
+    /**
+     * 自分からつなぐ隣のノードの数の設定。相手からつながれた場合はこの4倍まで受け入れる
+     * 
+     * @param maxPeers 隣のノードの数
+     */
+    public void setMaxPeers(int maxPeers) {
+        this.maxPeers = maxPeers;
+    }
+
+    /**
+     * 他のプロセスからこのノードに接続するためのアドレス(host:port)。同じプロセス内だけのノードではnull
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * 他のプロセスからこのノードに接続するためのアドレスを設定する(SocketTransport.listenの戻り値)
+     * 
+     * @param address アドレス(host:port)
+     */
+    public void setAddress(String address) {
+        this.address = address;
     }
 
-    public String getPublicKey() {
+    public Key getPublicKey() {
         return publicKey;
     }
 
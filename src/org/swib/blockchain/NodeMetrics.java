@@ -0,0 +1,325 @@
+package org.swib.blockchain;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * ノードの統計<br>
+ * カウンタとヒストグラムはノードが処理の中で記録し、チェーンの長さなどはノードから読む。
+ * JMX(register)とMetricsServerのテキストの両方から見られる。<br>
+ * 拒否の理由のコードはNodeのメッセージと同じで、0は仕事量が今のチェーン以下、Node.BROKENはデータが壊れている
+ */
+public class NodeMetrics implements NodeMetricsMXBean {
+    private static final String[] REASONS = { "less_work", "not_mined_block", "illegal_prev_block_hash",
+            "not_mined_coin", "illegal_prev_coin_hash", "others_coin", "already_pending", "double_spending",
+            "illegal_difficulty", "illegal_timestamp" };
+
+    private final Node node;
+    private final Miner miner;
+    private final Histogram syncBytes = new Histogram();
+    private final Histogram syncLatency = new Histogram();
+    private final Histogram validateTime = new Histogram();
+    private final Histogram blockInterval = new Histogram();
+    private final AtomicLong lastAccepted = new AtomicLong();
+    private final AtomicLong blocksAccepted = new AtomicLong();
+    private final AtomicLong reorgs = new AtomicLong();
+    private final AtomicLong transactionsConfirmed = new AtomicLong();
+    private final AtomicLong transactionsAccepted = new AtomicLong();
+    private final AtomicLongArray blocksRejected = new AtomicLongArray(REASONS.length + 1);
+    private final AtomicLongArray transactionsRejected = new AtomicLongArray(REASONS.length + 1);
+
+    /**
+     * コンストラクタ
+     *
+     * @param node 統計を取るノード
+     * @param miner ノードの採掘機
+     */
+    NodeMetrics(Node node, Miner miner) {
+        this.node = node;
+        this.miner = miner;
+    }
+
+    /**
+     * プラットフォームのMBeanServerに登録する
+     *
+     * @return 登録した名前
+     * @throws JMException 登録できない(同じ名前のノードが既にあるなど)
+     */
+    public ObjectName register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getObjectName();
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * MBeanServerから外す。登録していなければ何もしない
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * JMXでの名前
+     */
+    public ObjectName getObjectName() throws JMException {
+        return new ObjectName("org.swib.blockchain:type=Node,name=" + ObjectName.quote(node.getName()));
+    }
+
+    /**
+     * 受け取ったブロックを記録する
+     *
+     * @param bytes 受け取ったデータの大きさ
+     * @param nanos 受け取ってから承認(または拒否)するまでの時間
+     */
+    void recordSync(long bytes, long nanos) {
+        syncBytes.record(bytes);
+        syncLatency.record(nanos / 1000);
+    }
+
+    /**
+     * ProofOfWork.validateの時間を記録する
+     *
+     * @param nanos 時間
+     */
+    void recordValidate(long nanos) {
+        validateTime.record(nanos / 1000);
+    }
+
+    /**
+     * ブロックを承認したことを記録する
+     *
+     * @param blocks 承認したブロックの数
+     * @param rollback 巻き戻したブロックの数
+     * @param transactions 増えたトランザクションの数(巻き戻した分を引いたもの)
+     */
+    void blockAccepted(int blocks, int rollback, int transactions) {
+        long now = System.nanoTime();
+        long last = lastAccepted.getAndSet(now);
+        if (last != 0) {
+            blockInterval.record((now - last) / 1000);
+        }
+        blocksAccepted.addAndGet(blocks);
+        if (rollback > 0) {
+            reorgs.incrementAndGet();
+        }
+        transactionsConfirmed.addAndGet(transactions);
+    }
+
+    void blockRejected(int code) {
+        blocksRejected.incrementAndGet(index(code));
+    }
+
+    void transactionAccepted() {
+        transactionsAccepted.incrementAndGet();
+    }
+
+    void transactionRejected(int code) {
+        transactionsRejected.incrementAndGet(index(code));
+    }
+
+    public String getName() {
+        return node.getName();
+    }
+
+    @Override
+    public double getHashRate() {
+        return miner.getHashRate();
+    }
+
+    @Override
+    public long getNonceAttempts() {
+        return miner.getAttempts();
+    }
+
+    @Override
+    public int getHeight() {
+        return node.getHeight();
+    }
+
+    @Override
+    public int getDifficulty() {
+        return node.getDifficulty();
+    }
+
+    @Override
+    public int getSideBlocks() {
+        return node.getSideBlocks();
+    }
+
+    @Override
+    public int getWallet() {
+        return node.getWallet();
+    }
+
+    @Override
+    public int getMempoolSize() {
+        return node.getMempoolSize();
+    }
+
+    @Override
+    public int getPeerCount() {
+        return node.getPeerCount();
+    }
+
+    @Override
+    public long getInboxReceived() {
+        return node.getInbox().getReceived();
+    }
+
+    @Override
+    public long getInboxDropped() {
+        return node.getInbox().getDropped();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return node.getPeerMonitor().getDropped();
+    }
+
+    @Override
+    public int getThrottledPeers() {
+        return node.getPeerMonitor().getThrottledPeers();
+    }
+
+    @Override
+    public long getSyncCount() {
+        return syncBytes.getCount();
+    }
+
+    @Override
+    public long getSyncBytes() {
+        return syncBytes.getSum();
+    }
+
+    @Override
+    public double getSyncLatencyMean() {
+        return syncLatency.getMean();
+    }
+
+    @Override
+    public long getSyncLatencyP99() {
+        return syncLatency.getPercentile(99);
+    }
+
+    @Override
+    public double getValidateTimeMean() {
+        return validateTime.getMean();
+    }
+
+    @Override
+    public long getValidateTimeP99() {
+        return validateTime.getPercentile(99);
+    }
+
+    @Override
+    public long getBlocksAccepted() {
+        return blocksAccepted.get();
+    }
+
+    @Override
+    public double getBlockIntervalMean() {
+        return blockInterval.getMean();
+    }
+
+    @Override
+    public long getReorgs() {
+        return reorgs.get();
+    }
+
+    @Override
+    public long getTransactionsConfirmed() {
+        return transactionsConfirmed.get();
+    }
+
+    @Override
+    public Map<String, Long> getBlocksRejected() {
+        return toMap(blocksRejected);
+    }
+
+    @Override
+    public long getTransactionsAccepted() {
+        return transactionsAccepted.get();
+    }
+
+    @Override
+    public Map<String, Long> getTransactionsRejected() {
+        return toMap(transactionsRejected);
+    }
+
+    @Override
+    public long getSignatureCacheHits() {
+        return TransactionOperator.getSignatureCache().getHits();
+    }
+
+    @Override
+    public long getSignatureCacheMisses() {
+        return TransactionOperator.getSignatureCache().getMisses();
+    }
+
+    @Override
+    public int getSignatureCacheSize() {
+        return TransactionOperator.getSignatureCache().size();
+    }
+
+    /**
+     * 受け取ったブロック(チェーン)の大きさの分布
+     */
+    public Histogram getSyncBytesHistogram() {
+        return syncBytes;
+    }
+
+    /**
+     * ブロックを受け取ってから承認するまでの時間の分布
+     */
+    public Histogram getSyncLatencyHistogram() {
+        return syncLatency;
+    }
+
+    /**
+     * ブロックを承認する間隔の分布
+     */
+    public Histogram getBlockIntervalHistogram() {
+        return blockInterval;
+    }
+
+    /**
+     * ProofOfWork.validateの時間の分布
+     */
+    public Histogram getValidateTimeHistogram() {
+        return validateTime;
+    }
+
+    private static int index(int code) {
+        if (code == Node.BROKEN) {
+            return REASONS.length;
+        }
+        if (code < 0 || code >= REASONS.length) {
+            throw new IllegalArgumentException("Unknown reason: " + code);
+        }
+        return code;
+    }
+
+    private static Map<String, Long> toMap(AtomicLongArray counts) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < REASONS.length; i++) {
+            map.put(REASONS[i], counts.get(i));
+        }
+        map.put("broken", counts.get(REASONS.length));
+        return map;
+    }
+}
@@ -0,0 +1,93 @@
+package org.swib.blockchain;
+import java.util.Map;
+
+/**
+ * JMXで公開するノードの統計(org.swib.blockchain:type=Node,name=ノード名)<br>
+ * 時間はマイクロ秒、大きさはバイト
+ */
+public interface NodeMetricsMXBean {
+
+    /** 直前の採掘の1秒あたりの試行回数 */
+    double getHashRate();
+
+    /** これまでの採掘の試行回数の合計 */
+    long getNonceAttempts();
+
+    /** 承認済みのチェーンの長さ */
+    int getHeight();
+
+    /** 次のブロックの難易度 */
+    int getDifficulty();
+
+    /** 枝(本線から外れたブロック)の数 */
+    int getSideBlocks();
+
+    /** 今のコインの数 */
+    int getWallet();
+
+    /** 未承認のトランザクションの数 */
+    int getMempoolSize();
+
+    /** 隣のノードの数 */
+    int getPeerCount();
+
+    /** 受信箱が受け付けたメッセージの数 */
+    long getInboxReceived();
+
+    /** 受信箱があふれて捨てたメッセージの数 */
+    long getInboxDropped();
+
+    /** 不正なメッセージを送り続けたノードから受けて、読まずに捨てたメッセージの数(PeerMonitor) */
+    long getThrottledMessages();
+
+    /** 今メッセージを捨てているノードの数 */
+    int getThrottledPeers();
+
+    /** 受け取ったブロック(チェーン)の数 */
+    long getSyncCount();
+
+    /** 受け取ったブロック(チェーン)の大きさの合計 */
+    long getSyncBytes();
+
+    /** ブロックを受け取ってから承認するまでの時間の平均 */
+    double getSyncLatencyMean();
+
+    /** ブロックを受け取ってから承認するまでの時間の99パーセンタイル */
+    long getSyncLatencyP99();
+
+    /** ProofOfWork.validateの時間の平均 */
+    double getValidateTimeMean();
+
+    /** ProofOfWork.validateの時間の99パーセンタイル */
+    long getValidateTimeP99();
+
+    /** 承認したブロックの数 */
+    long getBlocksAccepted();
+
+    /** ブロックを承認する間隔の平均 */
+    double getBlockIntervalMean();
+
+    /** 自分のチェーンの末尾を巻き戻して別のチェーンに入れ替えた回数 */
+    long getReorgs();
+
+    /** 起動してから承認したトランザクションの数(報酬を除き、巻き戻した分を引く) */
+    long getTransactionsConfirmed();
+
+    /** 拒否したブロックの数(理由ごと) */
+    Map<String, Long> getBlocksRejected();
+
+    /** Mempoolに入れたトランザクションの数 */
+    long getTransactionsAccepted();
+
+    /** 拒否したトランザクションの数(理由ごと) */
+    Map<String, Long> getTransactionsRejected();
+
+    /** 署名の検証を記録から省いた回数(プロセス全体。TransactionOperator.getSignatureCache) */
+    long getSignatureCacheHits();
+
+    /** 署名の記録が無くて検証した回数(プロセス全体) */
+    long getSignatureCacheMisses();
+
+    /** 記録している署名の数(プロセス全体) */
+    int getSignatureCacheSize();
+}
@@ -4,11 +4,11 @@ package org.swib.blockchain;
  */
 public interface NodeOperator {
 	public void addNode(RemoteNode node);
-	public boolean sendWrong(int mode, String receiverPublicKey);
-	public boolean send(String receiverPublicKey);
+	public boolean sendWrong(int mode, Key receiverPublicKey);
+	public boolean send(Key receiverPublicKey);
 	public boolean wrongTranaction(int mode);
 	public void mining();
 	public int getWallet();
-	public String getPublicKey();
+	public Key getPublicKey();
 	public String getName();
 }
@@ -0,0 +1,24 @@
+package org.swib.blockchain;
+
+/**
+ * ブロックのNonce
+ */
+public final class Nonce extends FixedBytes {
+    /** バイト数 */
+    public static final int LENGTH = BlockHeader.NONCE_LEN;
+
+    public Nonce(byte[] value) {
+        super(value, LENGTH);
+    }
+
+    /**
+     * 16進文字列から作る(コマンドラインや設定ファイル用)
+     *
+     * @param hex 16進文字列
+     * @return 値
+     * @throws IllegalArgumentException 16進文字列でないか、長さが違う
+     */
+    public static Nonce fromHex(String hex) {
+        return new Nonce(Common.decodeHex(hex));
+    }
+}
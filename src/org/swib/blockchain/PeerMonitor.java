@@ -0,0 +1,155 @@
+package org.swib.blockchain;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 隣のノードごとの、拒否したメッセージ(壊れたデータ、採掘されていないブロック、不正なトランザクションなど)の割合<br>
+ * WINDOWごとにメッセージと拒否の数を数え、MIN_MESSAGES以上のうちMAX_REJECT_RATEを超えて拒否したノードからのメッセージは
+ * THROTTLE_TIMEの間、読まずに捨てる(不正なデータを送り続けるノードにCPUを使わないように)。
+ * ソケットの先のノードは、捨てる間はメッセージを受けた接続も切る。<br>
+ * ソケットの先のノードは名乗ったアドレスでなく、メッセージを受けた接続の相手のIPアドレスで区別する
+ * (アドレスを偽って他のノードを捨てさせたり、名乗らずに数えられないようにしたりできないように。
+ * ポートはつなぎ直すたびに変わるので含めない)。それ以外は同じプロセスのノード(Node)だけを数える
+ */
+public class PeerMonitor {
+    /** 数える区間(ミリ秒) */
+    public static final long WINDOW = 10 * 1000;
+    /** 区間の中でこの数以上のメッセージを受けたノードだけを判定する */
+    public static final int MIN_MESSAGES = 10;
+    /** 拒否の割合がこれを超えたら捨て始める */
+    public static final double MAX_REJECT_RATE = 0.5;
+    /** 捨てる時間(ミリ秒) */
+    public static final long THROTTLE_TIME = 60 * 1000;
+
+    private static final int MAX_PEERS = 1000;
+
+    /**
+     * ノードごとの数
+     */
+    private static class Stats {
+        long windowStart;
+        int messages;
+        int rejected;
+        long throttledUntil;
+    }
+
+    private final Map<Object, Stats> peers = new HashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+
+    /**
+     * メッセージを捨てるかどうか。捨てる場合は捨てた数を数え、ソケットの先のノードなら接続を切る
+     *
+     * @param peer 送り主
+     * @return True:捨てる
+     */
+    public synchronized boolean isThrottled(RemoteNode peer) {
+        Stats stats = peers.get(key(peer));
+        if (stats != null && stats.throttledUntil > System.currentTimeMillis()) {
+            dropped.incrementAndGet();
+            disconnect(peer);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * メッセージを処理した結果を記録する
+     *
+     * @param peer 送り主
+     * @param rejected True:不正なメッセージとして拒否した
+     * @return True:この記録で捨て始めた(ソケットの先のノードなら接続を切った)
+     */
+    public synchronized boolean record(RemoteNode peer, boolean rejected) {
+        Object key = key(peer);
+        if (key == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Stats stats = peers.get(key);
+        if (stats == null) {
+            if (peers.size() >= MAX_PEERS) {
+                prune(now);
+            }
+            stats = new Stats();
+            stats.windowStart = now;
+            peers.put(key, stats);
+        }
+        if (now - stats.windowStart >= WINDOW) {
+            stats.windowStart = now;
+            stats.messages = 0;
+            stats.rejected = 0;
+        }
+        stats.messages++;
+        if (rejected) {
+            stats.rejected++;
+        }
+        if (stats.throttledUntil <= now && stats.messages >= MIN_MESSAGES
+                && stats.rejected > stats.messages * MAX_REJECT_RATE) {
+            stats.throttledUntil = now + THROTTLE_TIME;
+            throttles.incrementAndGet();
+            disconnect(peer);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 今メッセージを捨てているノードの数
+     */
+    public synchronized int getThrottledPeers() {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (Stats stats : peers.values()) {
+            if (stats.throttledUntil > now) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 捨てたメッセージの数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 捨て始めた回数
+     */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    private static Object key(RemoteNode peer) {
+        if (peer == null) {
+            return null;
+        }
+        if (peer instanceof SocketRemoteNode) {
+            return ((SocketRemoteNode) peer).getOrigin();
+        }
+        return peer instanceof Node ? peer : null;
+    }
+
+    private static void disconnect(RemoteNode peer) {
+        if (peer instanceof SocketRemoteNode) {
+            ((SocketRemoteNode) peer).disconnect();
+        }
+    }
+
+    /**
+     * 区間が終わっていて、捨ててもいないノードを忘れる
+     */
+    private void prune(long now) {
+        Iterator<Stats> it = peers.values().iterator();
+        while (it.hasNext()) {
+            Stats stats = it.next();
+            if (now - stats.windowStart >= WINDOW && stats.throttledUntil <= now) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -1,30 +1,66 @@
 package org.swib.blockchain;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
- * ブロックの採掘及び検証
+ * ブロックの採掘及び検証<br>
+ * 難易度(ハッシュの先頭の0のBit数)はブロックヘッダに入っていて、RETARGET_WINDOW個のブロックごとに見直す。
+ * 直前のRETARGET_WINDOW個のブロックのタイムスタンプの間隔がTARGET_INTERVALの半分以下なら1Bit上げ、2倍以上なら1Bit下げる。
+ * 各ノードは同じ規則で次の難易度を計算し、それと違う難易度のブロックは拒否する
  */
 public class ProofOfWork {
-    private static final int PROOF_PREFIX_LEN = 15;
-    private static final int NONCE_LEN = 20;
+    /** 最初のブロックの難易度 */
+    public static final int INITIAL_DIFFICULTY = 15;
+    /** 難易度の下限 */
+    public static final int MIN_DIFFICULTY = 8;
+    /** 難易度の上限 */
+    public static final int MAX_DIFFICULTY = 64;
+    /** 難易度を見直すブロックの数 */
+    public static final int RETARGET_WINDOW = 10;
+    /** 目標のブロックの間隔(ミリ秒)。システムプロパティswib.blockIntervalで変えられるが、全ノードで同じにすること */
+    public static final long TARGET_INTERVAL = Long.getLong("swib.blockInterval", 1000);
+    /** タイムスタンプが今の時刻より進んでいてよい時間(ミリ秒) */
+    public static final long MAX_FUTURE = 2 * 60 * 1000;
+
+    private static final int NONCE_LEN = BlockHeader.NONCE_LEN;
+    private static final int PARALLEL_MIN_COINS = 16;
+
+    private static volatile boolean parallel = true;
 
     /**
-     * ブロックを指定回数採掘する。Nonceをランダムで生成し、ハッシュの先頭BitがPROOF_PREFIX_LENだけ0になったら採掘成功
+     * コインの履歴の検証を並列に行うかどうかを設定する。<br>
+     * 並列の場合もNGになったら検証をやめる。NGのコインが複数あっても、戻り値は逐次の場合と同じ(ブロックに最初に出てくるコインのNG)
+     * 
+     * @param parallel True:並列(ForkJoinPool.commonPool()を使う)
+     */
+    public static void setParallel(boolean parallel) {
+        ProofOfWork.parallel = parallel;
+    }
+
+    /**
+     * ブロックを指定回数採掘する。Nonceをランダムで生成し、ハッシュの先頭Bitがblock.difficultyだけ0になったら採掘成功
      * 
      * @param block 採掘しようとするブロック(コイン。トランザクション)の情報を含んでいる
      * @param trial 試行回数
      * @return Trueなら成功。block.nonceには成功したNonceが記録されている。
      */
-    public static boolean find(Block block, int trial) {
+    public static boolean find(BlockTemplate block, int trial) {
         if (trial < 0) trial = Integer.MAX_VALUE;
+        HeaderHasher hasher = new HeaderHasher(block.getHeader().toBytes());
         for (int i = 0; i < trial; i++) {
-            if (checkHash(block)) {
+            if (checkHash(hasher.hash(), block.difficulty)) {
+                block.nonce = new Nonce(hasher.getNonce());
                 return true;
             }
-            block.nonce = Common.encodeHex(Common.getRand(NONCE_LEN));
+            hasher.setNonce(Common.getRand(NONCE_LEN));
         }
         return false;
     }
@@ -33,24 +69,36 @@ public class ProofOfWork {
      * ブロックチェーンをバリデートする。<br>
      * NG項目は下記
      * <ul>
-     * <li>1. ハッシュの先頭BitがPROOF_PREFIX_LENだけ0になっていない(採掘に成功していないブロックがチェーン内にある)
+     * <li>1. ハッシュの先頭Bitがblock.difficultyだけ0になっていない(採掘に成功していないブロックがチェーン内にある)
      * <li>2. 前のブロックのハッシュがblock.prevHashと異なる値である
-     * <li>3. ブロックに含まれるコインが過去に採掘されたものではない
+     * <li>3. ブロックに含まれるコインが過去に採掘されたものではない、またはblock.coinIdが最初のコイン(報酬)のIDと違う
      * <li>4. coin.tx.prevHash が前のトランザクションのハッシュと異なる
      * <li>5. コインの署名がひとつ前のコインの持ち主の公開鍵で検証できない
+     * <li>8. block.difficultyがnextDifficultyで計算した難易度と違う
+     * <li>9. タイムスタンプが前のブロックより前、または今の時刻よりMAX_FUTUREより先
      * </ul>
+     * (6, 7はMempoolで使っている)
      * @param blockList ブロックチェーン
      * @return 0: OK
      */
     public static int validate(List<Block> blockList) {
         Block prevBlock = null;
+        Schedule schedule = new Schedule(0, 0, 0, 0);
+        long now = System.currentTimeMillis();
 
-        Map<String, List<Coin>> coins = new HashMap<>();
-        Map<String, Boolean> check = new HashMap<>();
+        Map<CoinId, List<Coin>> coins = new LinkedHashMap<>();
+        Map<CoinId, Boolean> check = new HashMap<>();
         for (Block block : blockList) {
             if (!checkHash(block)) {
                 return 1; // 1.NG
             }
+            if (!checkCoinId(block)) {
+                return 3; // 3.NG
+            }
+            int ret = schedule.add(block.difficulty, block.timestamp, now);
+            if (ret > 0) {
+                return ret; // 8.NG or 9.NG
+            }
 
             for (Coin coin : block.coins) {
                 if (!coins.containsKey(coin.id)) {
@@ -61,8 +109,7 @@ public class ProofOfWork {
             check.put(block.coinId, true);
 
             if (prevBlock != null) {
-                byte[] preHash = Common.hash(prevBlock);
-                if (!Common.encodeHex(preHash).equals(block.prevHash)) {
+                if (!prevBlock.getHash().equals(block.prevHash)) {
                     return 2; // 2.NG
                 }
             }
@@ -70,30 +117,223 @@ public class ProofOfWork {
             prevBlock = block;
         }
 
-        for (Map.Entry<String, List<Coin>> entry : coins.entrySet()) {
-            if (check.get(entry.getKey()) == null) {
+        return validateCoins(coins, id -> check.get(id) != null);
+    }
+
+    /**
+     * 承認済みのチェーンに追加されるブロックだけをバリデートする。<br>
+     * 承認済みのブロックは検証済みなので、コインの履歴はstateにある最新のトランザクションからつなげて検証する。
+     * NG項目と戻り値はvalidate(List)と同じ
+     * 
+     * @param blocks 追加されるブロック(先頭のブロックのprevHashはstateの最新のブロックのハッシュ)
+     * @param state 承認済みのチェーンの状態
+     * @return 0: OK
+     */
+    public static int validate(List<Block> blocks, ChainState state) {
+        Hash prevHash = state.getTipHash();
+        Schedule schedule = new Schedule(state.getHeight(), state.getDifficulty(), state.getTimestamp(),
+                state.getWindowStart());
+        long now = System.currentTimeMillis();
+
+        Map<CoinId, List<Coin>> coins = new LinkedHashMap<>();
+        Set<CoinId> check = new HashSet<>();
+        for (Block block : blocks) {
+            if (!checkHash(block)) {
+                return 1; // 1.NG
+            }
+            if (!checkCoinId(block)) {
                 return 3; // 3.NG
             }
-            int ret = TransactionOperator.validate(entry.getValue());
+            int ret = schedule.add(block.difficulty, block.timestamp, now);
             if (ret > 0) {
-                return 3 + ret; // 4.NG or 5.NG
+                return ret; // 8.NG or 9.NG
             }
+
+            for (Coin coin : block.coins) {
+                if (!coins.containsKey(coin.id)) {
+                    List<Coin> history = new ArrayList<>();
+                    Coin latest = state.getLatest(coin.id);
+                    if (latest != null) {
+                        history.add(latest);
+                    }
+                    coins.put(coin.id, history);
+                }
+                coins.get(coin.id).add(coin);
+            }
+            check.add(block.coinId);
+
+            if (prevHash != null && !prevHash.equals(block.prevHash)) {
+                return 2; // 2.NG
+            }
+            prevHash = block.getHash();
+        }
+
+        return validateCoins(coins, id -> check.contains(id) || state.isMined(id));
+    }
+
+    /**
+     * ブロックヘッダだけを検証する(LightNode)。コインは見ないので、NG項目のうち1, 2, 8, 9だけを検証する
+     * 
+     * @param prev 承認済みのヘッダ(ジェネシスブロックからheadersの直前まで)
+     * @param headers 追加されるヘッダ
+     * @return 0: OK
+     */
+    public static int validateHeaders(List<BlockHeader> prev, List<BlockHeader> headers) {
+        int h = prev.size();
+        Schedule schedule = h == 0 ? new Schedule(0, 0, 0, 0)
+                : new Schedule(h, prev.get(h - 1).difficulty, prev.get(h - 1).timestamp,
+                        prev.get((h - 1) / RETARGET_WINDOW * RETARGET_WINDOW).timestamp);
+        Hash prevHash = h == 0 ? null : prev.get(h - 1).hash();
+        long now = System.currentTimeMillis();
+        for (BlockHeader header : headers) {
+            Hash hash = header.hash();
+            if (header.difficulty < MIN_DIFFICULTY || header.difficulty > MAX_DIFFICULTY
+                    || !checkHash(hash.array(), header.difficulty)) {
+                return 1; // 1.NG
+            }
+            int ret = schedule.add(header.difficulty, header.timestamp, now);
+            if (ret > 0) {
+                return ret; // 8.NG or 9.NG
+            }
+            if (prevHash != null && !prevHash.equals(header.prevHash)) {
+                return 2; // 2.NG
+            }
+            prevHash = hash;
         }
         return 0;
     }
 
-    private static boolean checkHash(Block block) {
-        byte[] hash = Common.hash(block);
-        int n = PROOF_PREFIX_LEN / 8;
+    /**
+     * コインごとの履歴を検証する。コインの履歴はそれぞれ独立しているので並列に検証できる。<br>
+     * 並列でも順序を保つストリームのfindFirstなので、どのスレッドが先に終わっても最初のコインのNGを返す
+     * 
+     * @param coins コインIDごとの履歴(ブロックに出てくる順)
+     * @param mined コインIDが採掘済みかどうか
+     * @return 0: OK 3: 採掘されていないコイン 4, 5: TransactionOperator.validateのNG
+     */
+    private static int validateCoins(Map<CoinId, List<Coin>> coins, Predicate<CoinId> mined) {
+        Stream<Map.Entry<CoinId, List<Coin>>> stream = parallel && coins.size() >= PARALLEL_MIN_COINS
+                ? coins.entrySet().parallelStream() : coins.entrySet().stream();
+        return stream.mapToInt(entry -> {
+            if (!mined.test(entry.getKey())) {
+                return 3; // 3.NG
+            }
+            int ret = TransactionOperator.validate(entry.getValue());
+            return ret > 0 ? 3 + ret : 0; // 4.NG or 5.NG
+        }).filter(ret -> ret > 0).findFirst().orElse(0);
+    }
+
+    /**
+     * 次のブロックの難易度
+     * 
+     * @param height 次のブロックの位置(0から)
+     * @param difficulty 前のブロックの難易度
+     * @param timestamp 前のブロックのタイムスタンプ
+     * @param windowStart 前のブロックを含む見直しの区間の最初のブロックのタイムスタンプ
+     * @return 難易度
+     */
+    public static int nextDifficulty(int height, int difficulty, long timestamp, long windowStart) {
+        if (height == 0) {
+            return INITIAL_DIFFICULTY;
+        }
+        if (height % RETARGET_WINDOW != 0) {
+            return difficulty;
+        }
+        long actual = Math.max(1, timestamp - windowStart);
+        long expected = TARGET_INTERVAL * (RETARGET_WINDOW - 1);
+        if (actual * 2 <= expected) {
+            difficulty++;
+        } else if (actual >= expected * 2) {
+            difficulty--;
+        }
+        return Math.max(MIN_DIFFICULTY, Math.min(MAX_DIFFICULTY, difficulty));
+    }
+
+    /**
+     * ブロックの仕事量(採掘に必要な試行回数の期待値。2の難易度乗)。チェーンの仕事量はブロックの仕事量の合計
+     * 
+     * @param block ブロック
+     * @return 仕事量
+     */
+    public static BigInteger work(Block block) {
+        return work(block.difficulty);
+    }
+
+    /**
+     * 難易度の仕事量
+     * 
+     * @param difficulty 難易度
+     * @return 仕事量
+     */
+    public static BigInteger work(int difficulty) {
+        return BigInteger.ONE.shiftLeft(difficulty);
+    }
+
+    static boolean checkHash(Block block) {
+        return block.difficulty >= MIN_DIFFICULTY && block.difficulty <= MAX_DIFFICULTY
+                && checkHash(block.getHash().array(), block.difficulty);
+    }
+
+    /**
+     * 採掘したコインIDが最初のコイン(報酬)のIDと同じか。coinIdはヘッダに含まれずハッシュで守られないので、
+     * マークル木の根で守られているコインの方と比べる
+     * 
+     * @param block ブロック
+     * @return True:同じ
+     */
+    static boolean checkCoinId(Block block) {
+        return !block.coins.isEmpty() && block.coins.get(0).id.equals(block.coinId);
+    }
+
+    static boolean checkHash(byte[] hash, int difficulty) {
+        int n = difficulty / 8;
         for (int i = 0; i < n; i++) {
             if (hash[i] != 0) {
                 return false;
             }
         }
-        int m = PROOF_PREFIX_LEN % 8;
-        if ((hash[n] & ((1 << m) - 1)) != 0) {
+        int m = difficulty % 8;
+        if (m > 0 && (hash[n] & ((1 << m) - 1)) != 0) {
             return false;
         }
         return true;
     }
+
+    /**
+     * 検証中のチェーンの難易度とタイムスタンプ
+     */
+    private static class Schedule {
+        private int height;
+        private int difficulty;
+        private long timestamp;
+        private long windowStart;
+
+        Schedule(int height, int difficulty, long timestamp, long windowStart) {
+            this.height = height;
+            this.difficulty = difficulty;
+            this.timestamp = timestamp;
+            this.windowStart = windowStart;
+        }
+
+        /**
+         * 次のブロックの難易度とタイムスタンプを検証して進める
+         * 
+         * @return 0: OK 8: 難易度が違う 9: タイムスタンプが正しくない
+         */
+        int add(int blockDifficulty, long blockTimestamp, long now) {
+            if (blockDifficulty != nextDifficulty(height, difficulty, timestamp, windowStart)) {
+                return 8;
+            }
+            if (height > 0 && blockTimestamp < timestamp || blockTimestamp > now + MAX_FUTURE) {
+                return 9;
+            }
+            if (height % RETARGET_WINDOW == 0) {
+                windowStart = blockTimestamp;
+            }
+            height++;
+            difficulty = blockDifficulty;
+            timestamp = blockTimestamp;
+            return 0;
+        }
+    }
 }
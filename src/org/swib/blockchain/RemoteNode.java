@@ -1,9 +1,20 @@
 package org.swib.blockchain;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * リモートノードインターフェース
  */
 public interface RemoteNode {
-	public void syncBlock(byte[] input);
-	public boolean requestTransaction(byte[] input);
+	public void syncBlock(byte[] input, RemoteNode sender);
+	public void announceBlock(int height, byte[] input, RemoteNode sender);
+	public CompletableFuture<byte[]> requestBlocks(byte[] locator);
+	public CompletableFuture<byte[]> requestHeaders(byte[] locator);
+	public CompletableFuture<byte[]> requestCoins(byte[] publicKey);
+	public CompletableFuture<Boolean> requestTransaction(byte[] input, RemoteNode sender);
+	public void announceTransaction(byte[] input, RemoteNode sender);
 	public void addNode(RemoteNode node);
+	public void removeNode(RemoteNode node);
+	public CompletableFuture<List<RemoteNode>> requestPeers();
+	public String getAddress();
 }
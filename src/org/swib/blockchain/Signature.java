@@ -0,0 +1,24 @@
+package org.swib.blockchain;
+
+/**
+ * 署名(DigitalSign.sign)
+ */
+public final class Signature extends FixedBytes {
+    /** バイト数 */
+    public static final int LENGTH = 32;
+
+    public Signature(byte[] value) {
+        super(value, LENGTH);
+    }
+
+    /**
+     * 16進文字列から作る(コマンドラインや設定ファイル用)
+     *
+     * @param hex 16進文字列
+     * @return 値
+     * @throws IllegalArgumentException 16進文字列でないか、長さが違う
+     */
+    public static Signature fromHex(String hex) {
+        return new Signature(Common.decodeHex(hex));
+    }
+}
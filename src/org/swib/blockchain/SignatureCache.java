@@ -0,0 +1,156 @@
+package org.swib.blockchain;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 検証に成功した署名の記録(TransactionOperator.validate)<br>
+ * キーはコインのハッシュ(ID、トランザクション、署名を含む)で、値は検証に使った公開鍵。
+ * 同じコインを同じ公開鍵でもう一度検証する時は、署名の計算をせずに記録を引くだけで済む。失敗した検証は記録しない。<br>
+ * 容量を超えたら最近使われていないものから捨てる(LRU)。
+ * 並列の検証(ProofOfWork.setParallel)でロックを取り合わないよう、ハッシュで区画に分けて区画ごとにロックを取る
+ */
+public class SignatureCache {
+    static final int SEGMENTS = 16;
+
+    /**
+     * 区画。アクセス順のLinkedHashMapで、容量を超えたら一番古いものを捨てる
+     */
+    private class Segment extends LinkedHashMap<Hash, Key> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Hash, Key> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int capacity;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     *
+     * @param capacity 記録する最大の数。0なら記録しない
+     */
+    public SignatureCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        int perSegment = (this.capacity + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * 検証済みかどうか
+     *
+     * @param hash コインのハッシュ
+     * @param publicKey 検証に使う公開鍵
+     * @return True:この公開鍵で検証に成功したことがある
+     */
+    public boolean contains(Hash hash, Key publicKey) {
+        if (capacity == 0) {
+            return false;
+        }
+        Key key;
+        Segment segment = segmentOf(hash);
+        synchronized (segment) {
+            key = segment.get(hash);
+        }
+        if (key != null && key.equals(publicKey)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 検証に成功したことを記録する
+     *
+     * @param hash コインのハッシュ
+     * @param publicKey 検証に使った公開鍵
+     */
+    public void add(Hash hash, Key publicKey) {
+        if (capacity == 0) {
+            return;
+        }
+        Segment segment = segmentOf(hash);
+        synchronized (segment) {
+            segment.put(hash, publicKey);
+        }
+    }
+
+    /**
+     * 記録を全て消す(数は消さない)
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * 記録している数
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 記録が見つかって検証を省いた回数
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 記録が無くて検証した回数
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 容量を超えて捨てた数
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private Segment segmentOf(Hash hash) {
+        return segments[indexOf(hash)];
+    }
+
+    /**
+     * ハッシュが入る区画の番号
+     */
+    static int indexOf(Hash hash) {
+        return (hash.hashCode() & 0x7fffffff) % SEGMENTS;
+    }
+}
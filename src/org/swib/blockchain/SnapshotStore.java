@@ -0,0 +1,90 @@
+package org.swib.blockchain;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ChainStateのスナップショットのファイル(state0000000100.snap, ...)<br>
+ * 一時ファイルに書いてから名前を変えるので、書いている途中で落ちても前のスナップショットは残る。
+ * 新しいものからkeep個だけ残す
+ */
+public class SnapshotStore {
+    private static final String PREFIX = "state";
+    private static final String SUFFIX = ".snap";
+
+    private final File dir;
+    private final int keep;
+
+    /**
+     * コンストラクタ
+     *
+     * @param dir 保存先のディレクトリ(BlockStoreと同じでよい)
+     * @param keep 残すスナップショットの数
+     */
+    public SnapshotStore(File dir, int keep) {
+        this.dir = dir;
+        this.keep = Math.max(1, keep);
+    }
+
+    /**
+     * スナップショットを保存する
+     *
+     * @param height スナップショットを作った時のチェーンの長さ
+     * @param data スナップショット(ChainState.snapshot)
+     * @throws IOException 書けない
+     */
+    public void save(int height, byte[] data) throws IOException {
+        File tmp = new File(dir, PREFIX + SUFFIX + ".tmp");
+        Files.write(tmp.toPath(), data);
+        Files.move(tmp.toPath(), file(height).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        List<Integer> heights = getHeights();
+        for (int i = keep; i < heights.size(); i++) {
+            file(heights.get(i)).delete();
+        }
+    }
+
+    /**
+     * スナップショットを読む
+     *
+     * @param height チェーンの長さ
+     * @return スナップショット。読めなければnull
+     */
+    public byte[] load(int height) {
+        try {
+            return Files.readAllBytes(file(height).toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 保存されているスナップショットのチェーンの長さ(新しい順)
+     */
+    public List<Integer> getHeights() {
+        List<Integer> heights = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        heights.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // None
+                    }
+                }
+            }
+        }
+        Collections.sort(heights, Collections.reverseOrder());
+        return heights;
+    }
+
+    private File file(int height) {
+        return new File(dir, String.format("%s%010d%s", PREFIX, height, SUFFIX));
+    }
+}
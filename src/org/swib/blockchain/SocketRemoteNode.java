@@ -0,0 +1,215 @@
+package org.swib.blockchain;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ソケットの先にあるノード<br>
+ * 同じ相手に複数の接続を張り、メッセージごとに順番に使い分ける(接続プール)
+ */
+public class SocketRemoteNode implements RemoteNode {
+    private static final Logger LOGGER = new Logger("SocketRemoteNode");
+
+    private final SocketTransport transport;
+    private final String address;
+    private final SocketTransport.Connection[] pool;
+    private final AtomicInteger next;
+    /** メッセージを受けた接続(送り主として作った場合だけ) */
+    private final SocketTransport.Connection origin;
+
+    /**
+     * アドレスを知っているノード
+     *
+     * @param transport 通信に使うトランスポート
+     * @param address アドレス(host:port)
+     * @param poolSize 接続の数
+     */
+    SocketRemoteNode(SocketTransport transport, String address, int poolSize) {
+        this.transport = transport;
+        this.address = address;
+        this.pool = new SocketTransport.Connection[poolSize];
+        this.next = new AtomicInteger();
+        this.origin = null;
+    }
+
+    /**
+     * アドレスを知らない(接続を受けただけの)ノード。受けた接続だけを使う
+     *
+     * @param transport 通信に使うトランスポート
+     * @param connection 受けた接続
+     */
+    SocketRemoteNode(SocketTransport transport, SocketTransport.Connection connection) {
+        this.transport = transport;
+        this.address = null;
+        this.pool = new SocketTransport.Connection[] { connection };
+        this.next = new AtomicInteger();
+        this.origin = connection;
+    }
+
+    /**
+     * アドレスを名乗って接続してきたノード。送るときはそのアドレスのノードと同じ接続を使い、
+     * 区別(PeerMonitor)には名乗ったアドレスでなくメッセージを受けた接続の相手を使う
+     *
+     * @param node 名乗ったアドレスのノード
+     * @param connection 受けた接続
+     */
+    SocketRemoteNode(SocketRemoteNode node, SocketTransport.Connection connection) {
+        this.transport = node.transport;
+        this.address = node.address;
+        this.pool = node.pool;
+        this.next = node.next;
+        this.origin = connection;
+    }
+
+    public void syncBlock(byte[] input, RemoteNode sender) {
+        send(SocketTransport.SYNC_BLOCK, withSender(input, sender));
+    }
+
+    public void announceTransaction(byte[] input, RemoteNode sender) {
+        send(SocketTransport.ANNOUNCE_TRANSACTION, withSender(input, sender));
+    }
+
+    public void announceBlock(int height, byte[] input, RemoteNode sender) {
+        String from = sender == null ? null : sender.getAddress();
+        int len = from == null ? 0 : from.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + 4 + len + input.length);
+        buf.putInt(height);
+        SocketTransport.writeString(buf, from);
+        buf.put(input);
+        send(SocketTransport.ANNOUNCE_BLOCK, buf.array());
+    }
+
+    public CompletableFuture<byte[]> requestBlocks(byte[] locator) {
+        return request(SocketTransport.REQUEST_BLOCKS, locator);
+    }
+
+    public CompletableFuture<byte[]> requestHeaders(byte[] locator) {
+        return request(SocketTransport.REQUEST_HEADERS, locator);
+    }
+
+    public CompletableFuture<byte[]> requestCoins(byte[] publicKey) {
+        return request(SocketTransport.REQUEST_COINS, publicKey);
+    }
+
+    public CompletableFuture<Boolean> requestTransaction(byte[] input, RemoteNode sender) {
+        return request(SocketTransport.REQUEST_TRANSACTION, withSender(input, sender)).thenApply(b -> b.length > 0 && b[0] != 0);
+    }
+
+    public void addNode(RemoteNode node) {
+        String a = node.getAddress();
+        if (a != null && !a.equals(address)) {
+            send(SocketTransport.ADD_NODE, a.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public void removeNode(RemoteNode node) {
+        String a = node.getAddress();
+        if (a != null) {
+            send(SocketTransport.REMOVE_NODE, a.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public CompletableFuture<List<RemoteNode>> requestPeers() {
+        return request(SocketTransport.REQUEST_PEERS, new byte[0]).thenApply(b -> {
+            @SuppressWarnings("unchecked")
+            List<String> addresses = (List<String>) Common.deserialize(b);
+            List<RemoteNode> peers = new ArrayList<>();
+            if (addresses != null) {
+                for (String a : addresses) {
+                    peers.add(transport.connect(a));
+                }
+            }
+            return peers;
+        });
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * メッセージを受けた接続の相手のIPアドレス。ポートはつなぎ直すたびに変わるので含めない。
+     * 送り主として作ったノードでなければnull
+     */
+    InetAddress getOrigin() {
+        SocketAddress remote = origin == null ? null : origin.getRemoteAddress();
+        return remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+    }
+
+    /**
+     * メッセージを受けた接続を切る(PeerMonitorがメッセージを捨てる相手)。送り主として作ったノードでなければ何もしない
+     */
+    void disconnect() {
+        if (origin != null) {
+            origin.disconnect(new IOException("Throttled"));
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (address == null || !(obj instanceof SocketRemoteNode)) {
+            return this == obj;
+        }
+        return address.equals(((SocketRemoteNode) obj).address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address == null ? System.identityHashCode(this) : address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SocketRemoteNode(" + address + ")";
+    }
+
+    /**
+     * 送り主のアドレス(文字列)を前に付けた本体
+     */
+    private static byte[] withSender(byte[] input, RemoteNode sender) {
+        String from = sender == null ? null : sender.getAddress();
+        int len = from == null ? 0 : from.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + len + input.length);
+        SocketTransport.writeString(buf, from);
+        buf.put(input);
+        return buf.array();
+    }
+
+    private void send(byte type, byte[] payload) {
+        try {
+            connection().send(type, 0, payload);
+        } catch (IOException e) {
+            LOGGER.debug("Send failed: {}({})", address, e);
+        }
+    }
+
+    private CompletableFuture<byte[]> request(byte type, byte[] payload) {
+        try {
+            return connection().request(type, payload);
+        } catch (IOException e) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private SocketTransport.Connection connection() throws IOException {
+        int i = Math.floorMod(next.getAndIncrement(), pool.length);
+        synchronized (pool) {
+            if (pool[i] == null || (pool[i].isClosed() && address != null)) {
+                if (address == null) {
+                    throw new IOException("Connection closed");
+                }
+                pool[i] = transport.open(address);
+            }
+            return pool[i];
+        }
+    }
+}
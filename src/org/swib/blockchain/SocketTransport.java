@@ -0,0 +1,606 @@
+package org.swib.blockchain;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ノード間のソケット通信(ノンブロッキングNIO)<br>
+ * 1つのスレッドがSelectorで全ての接続の読み書きを行い、受け取ったメッセージの処理は別のスレッドで行う。<br>
+ * フレームの形式は下記の通り。接続はどちら向きにもリクエストを送れて、リクエストIDで応答を対応付けるので、
+ * 応答を待たずに次のリクエストを送れる。REQUEST_TIMEOUTまでに応答が無いリクエストは失敗にして忘れる
+ * <ul>
+ * <li>長さ(int, 以降のバイト数) 種類(1byte) リクエストID(int) 本体
+ * </ul>
+ * 一番大きいメッセージはNode.MAX_REPLY_BYTESで打ち切られた応答なので、それより長いフレームを送ってくる接続は切る。<br>
+ * 送るフレームは接続ごとのキューに入れてSelectorのスレッドが書き込む。読まない(遅い)相手のためにキューがMAX_QUEUED_BYTESを超える接続は切る
+ */
+public class SocketTransport implements Closeable {
+    static final byte SYNC_BLOCK = 1;
+    static final byte ANNOUNCE_BLOCK = 2;
+    static final byte REQUEST_BLOCKS = 3;
+    static final byte REQUEST_TRANSACTION = 4;
+    static final byte ADD_NODE = 5;
+    static final byte RESPONSE = 6;
+    static final byte ERROR = 7;
+    static final byte REQUEST_PEERS = 8;
+    static final byte ANNOUNCE_TRANSACTION = 9;
+    static final byte REMOVE_NODE = 10;
+    static final byte REQUEST_HEADERS = 11;
+    static final byte REQUEST_COINS = 12;
+
+    private static final int HEADER_LEN = 1 + 4;
+    private static final int MAX_FRAME = HEADER_LEN + Node.MAX_REPLY_BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long REQUEST_TIMEOUT = 10000;
+    /** 1つの接続で書き込み待ちにしておける最大のバイト数(最大のフレームがいくつか入る大きさ) */
+    private static final long MAX_QUEUED_BYTES = 4L * (4 + MAX_FRAME);
+
+    /** 相手から受け取った壊れたフレームなどはdebugで出す(相手がいくらでも起こせるので) */
+    private static final Logger LOGGER = new Logger("SocketTransport");
+    /** このプロセスで待ち受けているノード(同じプロセスのノードにはソケットを使わない) */
+    private static final Map<String, RemoteNode> LOCAL = new ConcurrentHashMap<>();
+
+    private final RemoteNode local;
+    private final int poolSize;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<String, SocketRemoteNode> remotes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile String address;
+    private volatile boolean running = true;
+    private volatile long requestTimeout = REQUEST_TIMEOUT;
+    private volatile long maxQueuedBytes = MAX_QUEUED_BYTES;
+
+    /**
+     * コンストラクタ
+     *
+     * @param local 受け取ったメッセージを処理するノード(送るだけの場合はnull)
+     * @param poolSize 1つの相手に張る接続の数
+     * @throws IOException Selectorが開けない
+     */
+    public SocketTransport(RemoteNode local, int poolSize) throws IOException {
+        this.local = local;
+        this.poolSize = Math.max(1, poolSize);
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "transport-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "transport-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        Thread thread = new Thread(this::run, "transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 接続の待ち受けを始める
+     *
+     * @param host 待ち受けるホスト名
+     * @param port 待ち受けるポート(0なら空いているポート)
+     * @return このノードのアドレス(host:port)
+     * @throws IOException 待ち受けできない
+     */
+    public String listen(String host, int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(host, port));
+        int bound = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        execute(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                LOGGER.warn("Listen failed({}): {}", bound, e);
+            }
+        });
+        address = host + ":" + bound;
+        if (local != null) {
+            LOCAL.put(address, local);
+        }
+        return address;
+    }
+
+    /**
+     * 相手のノード。同じアドレスには同じオブジェクトを返し、接続はそのノードにメッセージを送るときに張る。
+     * このプロセスで待ち受けているノードならそのノード自身を返す
+     *
+     * @param address 相手のアドレス(host:port)
+     * @return 相手のノード
+     */
+    public RemoteNode connect(String address) {
+        RemoteNode node = LOCAL.get(address);
+        if (node != null) {
+            return node;
+        }
+        return remotes.computeIfAbsent(address, a -> new SocketRemoteNode(this, a, poolSize));
+    }
+
+    /**
+     * 応答を待つ時間を変える(テスト用)
+     *
+     * @param timeout 応答を待つ最大の時間(ミリ秒)
+     */
+    void setRequestTimeout(long timeout) {
+        this.requestTimeout = timeout;
+    }
+
+    /**
+     * 1つの接続で書き込み待ちにしておける最大のバイト数を変える(テスト用)
+     *
+     * @param bytes 最大のバイト数
+     */
+    void setMaxQueuedBytes(long bytes) {
+        this.maxQueuedBytes = bytes;
+    }
+
+    /**
+     * 待ち受けているアドレス。待ち受けていなければnull
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public void close() {
+        if (address != null) {
+            LOCAL.remove(address, local);
+        }
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * 新しい接続を張る。接続の完了を待たずに返し、それまでに送ったフレームは完了後に送られる
+     */
+    Connection open(String address) throws IOException {
+        int i = address.lastIndexOf(':');
+        InetSocketAddress remote = new InetSocketAddress(address.substring(0, i),
+                Integer.parseInt(address.substring(i + 1)));
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        boolean connected = channel.connect(remote);
+        execute(() -> connection.register(connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT));
+        return connection;
+    }
+
+    /**
+     * 1つのソケット接続
+     */
+    class Connection {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        /** writesに入っているフレームのバイト数(書き終わったら減らす) */
+        private final AtomicLong queued = new AtomicLong();
+        private final Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey key;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * 応答のあるリクエストを送る
+         *
+         * @return 応答の本体。一定時間応答が無ければTimeoutExceptionで完了する
+         */
+        CompletableFuture<byte[]> request(byte type, byte[] payload) {
+            int id = nextId.incrementAndGet();
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            pending.put(id, future);
+            ScheduledFuture<?> timeout = timer.schedule(() -> {
+                if (pending.remove(id, future)) {
+                    future.completeExceptionally(new TimeoutException("No response: " + type));
+                }
+            }, requestTimeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((r, e) -> timeout.cancel(false));
+            send(type, id, payload);
+            if (closed && pending.remove(id) != null) {
+                future.completeExceptionally(new IOException("Connection closed"));
+            }
+            return future;
+        }
+
+        /**
+         * フレームを送る。実際の書き込みはSelectorのスレッドで行う。
+         * 書き込み待ちがmaxQueuedBytesを超える場合は、相手が読んでいないので送らずに接続を切る
+         */
+        void send(byte type, int id, byte[] payload) {
+            if (closed) {
+                return;
+            }
+            long size = 4 + HEADER_LEN + payload.length;
+            if (queued.addAndGet(size) > maxQueuedBytes) {
+                queued.addAndGet(-size);
+                LOGGER.debug("Write queue full: {}({} bytes)", getRemoteAddress(), queued.get());
+                disconnect(new IOException("Write queue full"));
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.allocate((int) size);
+            frame.putInt(HEADER_LEN + payload.length);
+            frame.put(type);
+            frame.putInt(id);
+            frame.put(payload);
+            frame.flip();
+            writes.add(frame);
+            execute(() -> {
+                if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 接続を切る。実際に切るのはSelectorのスレッドで行う
+         *
+         * @param cause 応答を待っているリクエストを失敗にする理由
+         */
+        void disconnect(IOException cause) {
+            execute(() -> close(cause));
+        }
+
+        /**
+         * 相手のソケットアドレス(接続が終わる前はnull)
+         */
+        SocketAddress getRemoteAddress() {
+            return channel.socket().getRemoteSocketAddress();
+        }
+
+        /**
+         * 応答を待っているリクエストの数
+         */
+        int getPending() {
+            return pending.size();
+        }
+
+        private void register(int ops) {
+            try {
+                if (!writes.isEmpty() && ops == SelectionKey.OP_READ) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key = channel.register(selector, ops, this);
+            } catch (ClosedChannelException e) {
+                close(e);
+            }
+        }
+
+        private void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException();
+            }
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 4) {
+                int len = readBuffer.getInt(readBuffer.position());
+                if (len < HEADER_LEN || len > MAX_FRAME) {
+                    throw new IOException("Illegal frame length: " + len);
+                }
+                if (readBuffer.remaining() < 4 + len) {
+                    if (readBuffer.capacity() < 4 + len) {
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + len);
+                        bigger.put(readBuffer);
+                        readBuffer = bigger;
+                        return;
+                    }
+                    break;
+                }
+                readBuffer.getInt();
+                byte type = readBuffer.get();
+                int id = readBuffer.getInt();
+                byte[] payload = new byte[len - HEADER_LEN];
+                readBuffer.get(payload);
+                workers.execute(() -> {
+                    try {
+                        dispatch(this, type, id, payload);
+                    } catch (RuntimeException e) {
+                        // 壊れたフレームを送ってくる相手とは接続を切る
+                        LOGGER.debug("Broken frame from {}({})", getRemoteAddress(), e);
+                        execute(() -> close(new IOException("Broken frame", e)));
+                    }
+                });
+            }
+            readBuffer.compact();
+            shrink();
+        }
+
+        /**
+         * 大きいフレームのために広げた読み込みバッファを、残りが普通の大きさに収まれば元の大きさに戻す
+         */
+        private void shrink() {
+            if (readBuffer.capacity() <= BUFFER_SIZE || readBuffer.position() > BUFFER_SIZE) {
+                return;
+            }
+            if (readBuffer.position() >= 4 && 4 + readBuffer.getInt(0) > BUFFER_SIZE) {
+                // 読みかけのフレームがまだ大きい
+                return;
+            }
+            readBuffer.flip();
+            ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        }
+
+        private void write() throws IOException {
+            ByteBuffer buf;
+            while ((buf = writes.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return;
+                }
+                writes.poll();
+                queued.addAndGet(-buf.capacity());
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * 書き込み待ちのバイト数
+         */
+        long getQueued() {
+            return queued.get();
+        }
+
+        private void close(IOException cause) {
+            closed = true;
+            writes.clear();
+            queued.set(0);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // None
+            }
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<byte[]> future = pending.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOGGER.error("Select failed({})", e);
+                break;
+            }
+            if (!running) {
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        connection.channel.finishConnect();
+                        connection.register(SelectionKey.OP_READ);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    LOGGER.debug("Connection closed: {}({})", connection.getRemoteAddress(), e);
+                    connection.close(e);
+                }
+            }
+        }
+        // 応答を待っているリクエストも失敗にしてから、スレッドを止める
+        IOException closed = new IOException("Transport closed");
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close(closed);
+                } else {
+                    key.channel().close();
+                }
+            }
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.warn("Close failed({})", e);
+        }
+        workers.shutdown();
+        timer.shutdown();
+    }
+
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                new Connection(channel).register(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Accept failed({})", e);
+        }
+    }
+
+    private void dispatch(Connection connection, byte type, int id, byte[] payload) {
+        if (type == RESPONSE || type == ERROR) {
+            CompletableFuture<byte[]> future = connection.pending.remove(id);
+            if (future != null && type == RESPONSE) {
+                future.complete(payload);
+            } else if (future != null) {
+                future.completeExceptionally(new IOException(new String(payload, StandardCharsets.UTF_8)));
+            }
+            return;
+        }
+        if (local == null) {
+            if (type == REQUEST_BLOCKS || type == REQUEST_TRANSACTION || type == REQUEST_PEERS
+                    || type == REQUEST_HEADERS || type == REQUEST_COINS) {
+                connection.send(ERROR, id, "No local node".getBytes(StandardCharsets.UTF_8));
+            }
+            return;
+        }
+
+        switch (type) {
+        case SYNC_BLOCK:
+            ByteBuffer chain = ByteBuffer.wrap(payload);
+            String syncFrom = readString(chain);
+            byte[] blocks = new byte[chain.remaining()];
+            chain.get(blocks);
+            local.syncBlock(blocks, sender(syncFrom, connection));
+            break;
+        case ANNOUNCE_BLOCK:
+            ByteBuffer buf = ByteBuffer.wrap(payload);
+            int height = buf.getInt();
+            String sender = readString(buf);
+            byte[] block = new byte[buf.remaining()];
+            buf.get(block);
+            local.announceBlock(height, block, sender(sender, connection));
+            break;
+        case ANNOUNCE_TRANSACTION:
+            ByteBuffer tx = ByteBuffer.wrap(payload);
+            String from = readString(tx);
+            byte[] coin = new byte[tx.remaining()];
+            tx.get(coin);
+            local.announceTransaction(coin, sender(from, connection));
+            break;
+        case REQUEST_BLOCKS:
+            reply(connection, id, local.requestBlocks(payload));
+            break;
+        case REQUEST_HEADERS:
+            reply(connection, id, local.requestHeaders(payload));
+            break;
+        case REQUEST_COINS:
+            reply(connection, id, local.requestCoins(payload));
+            break;
+        case REQUEST_TRANSACTION:
+            ByteBuffer request = ByteBuffer.wrap(payload);
+            String requestFrom = readString(request);
+            byte[] input = new byte[request.remaining()];
+            request.get(input);
+            reply(connection, id, local.requestTransaction(input, sender(requestFrom, connection))
+                    .thenApply(r -> new byte[] { (byte) (r ? 1 : 0) }));
+            break;
+        case ADD_NODE:
+            String node = new String(payload, StandardCharsets.UTF_8);
+            if (!node.equals(address)) {
+                local.addNode(connect(node));
+            }
+            break;
+        case REMOVE_NODE:
+            local.removeNode(connect(new String(payload, StandardCharsets.UTF_8)));
+            break;
+        case REQUEST_PEERS:
+            // 他のプロセスから接続できるノードだけを教える
+            reply(connection, id, local.requestPeers().thenApply(peers -> {
+                List<String> addresses = new ArrayList<>();
+                for (RemoteNode peer : peers) {
+                    if (peer.getAddress() != null) {
+                        addresses.add(peer.getAddress());
+                    }
+                }
+                return Common.serialize(addresses);
+            }));
+            break;
+        default:
+            LOGGER.debug("Unknown frame type from {}: {}", connection.getRemoteAddress(), type);
+            execute(() -> connection.close(new IOException("Unknown frame type: " + type)));
+        }
+    }
+
+    /**
+     * 送り主のノード。名乗ったアドレスのノードに送るが、受けた接続も覚えておく(名乗ったアドレスは信用できないので)。
+     * アドレスを知らない、または同じプロセスのノードを名乗った場合は受けた接続だけを使う
+     */
+    private RemoteNode sender(String address, Connection connection) {
+        RemoteNode node = address == null ? null : connect(address);
+        if (node instanceof SocketRemoteNode) {
+            return new SocketRemoteNode((SocketRemoteNode) node, connection);
+        }
+        return new SocketRemoteNode(this, connection);
+    }
+
+    private static void reply(Connection connection, int id, CompletableFuture<byte[]> result) {
+        result.whenComplete((payload, e) -> {
+            if (e == null) {
+                connection.send(RESPONSE, id, payload);
+            } else {
+                connection.send(ERROR, id, String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    static void writeString(ByteBuffer buf, String str) {
+        if (str == null) {
+            buf.putInt(-1);
+        } else {
+            byte[] b = str.getBytes(StandardCharsets.UTF_8);
+            buf.putInt(b.length);
+            buf.put(b);
+        }
+    }
+
+    static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -5,6 +5,11 @@ import java.util.List;
  * コインのトランザクションの検証及び生成
  */
 public class TransactionOperator {
+    /** 検証済みの署名の記録の数。システムプロパティswib.signatureCacheで変えられる(0で記録しない) */
+    public static final int SIGNATURE_CACHE_SIZE = Integer.getInteger("swib.signatureCache", 100000);
+
+    private static final SignatureCache signatureCache = new SignatureCache(SIGNATURE_CACHE_SIZE);
+
     /**
      * コインのトランザクション検証<br>
      * NG要因は下記の通り
@@ -13,6 +18,7 @@ public class TransactionOperator {
      * <li> 1. coin.tx.prevHash が前のトランザクションのハッシュと異なる
      * <li> 2. コインの署名がひとつ前のコインの持ち主の公開鍵で検証できない
      * </ul>
+     * 署名の検証に成功したコインは記録しておき、次からは検証を省く(SignatureCache)
      * 
      * @param coins
      * @return
@@ -22,17 +28,38 @@ public class TransactionOperator {
 			Coin preCoin = coins.get(i - 1);
 			Coin coin = coins.get(i);
 
-			String sign = coin.senderSign;
-			String publicKey = preCoin.tx.receiverPublicKey;
+			Signature sign = coin.senderSign;
+			Key publicKey = preCoin.tx.receiverPublicKey;
 			
-			if (!DigitalSign.hashCheck(preCoin, coin.tx.prevHash)) {
+			if (!preCoin.getHash().equals(coin.tx.prevHash)) {
 			    return 1;
-			} else if (!DigitalSign.validate(coin.tx, sign, publicKey)) {
+			} else if (!verify(coin, sign, publicKey)) {
 				return 2;
 			}
 		}
 		return 0;
 	}
+
+	/**
+	 * 検証済みの署名の記録(プロセス全体で共有)
+	 * 
+	 * @return 記録
+	 */
+	public static SignatureCache getSignatureCache() {
+		return signatureCache;
+	}
+
+	private static boolean verify(Coin coin, Signature sign, Key publicKey) {
+		Hash hash = coin.getHash();
+		if (signatureCache.contains(hash, publicKey)) {
+			return true;
+		}
+		if (!DigitalSign.validate(coin.tx, sign, publicKey)) {
+			return false;
+		}
+		signatureCache.add(hash, publicKey);
+		return true;
+	}
 	
 	/**
 	 * コインを送る
@@ -42,10 +69,10 @@ public class TransactionOperator {
 	 * @param receiverPublicKey 送り先の公開鍵
 	 * @return 新しいコイン
 	 */
-	public static Coin send(Coin coin, String senderPrivateKey, String receiverPublicKey) {
-		String prevHash = DigitalSign.hash(coin);
+	public static Coin send(Coin coin, Key senderPrivateKey, Key receiverPublicKey) {
+		Hash prevHash = coin.getHash();
 		Coin.Transaction tx = new Coin.Transaction(prevHash, receiverPublicKey);
-		String sign = DigitalSign.sign(tx, senderPrivateKey);
+		Signature sign = DigitalSign.sign(tx, senderPrivateKey);
 		Coin newCoin = new Coin(coin.id, tx, sign);
 		return newCoin;
 	}
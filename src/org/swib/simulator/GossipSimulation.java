@@ -0,0 +1,103 @@
+package org.swib.simulator;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.swib.blockchain.Inbox;
+import org.swib.blockchain.Logger;
+import org.swib.blockchain.Node;
+
+/**
+ * ゴシップでの拡散のシミュレーション<br>
+ * 同じプロセスにノードをn個作り、各ノードは既にいる適当なノードを入口にしてネットワークに参加する。
+ * 1つのノードがブロックを採掘してからコインを送り、全ノードに届くまでに受信されたメッセージ数を数える。<br>
+ * 全ノードが互いにつながる場合は接続数がn(n-1)/2になるが、ゴシップでは接続数もメッセージ数もnに比例する程度になる
+ * <ul>
+ * <li>引数1: ノード数(カンマ区切り) 例) 10,100,1000,2000
+ * <li>引数2: 自分からつなぐ隣のノードの数
+ * </ul>
+ */
+public class GossipSimulation {
+
+    public static void main(String[] args) {
+        String sizes = args.length > 0 ? args[0] : "10,100,1000,2000";
+        int maxPeers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        PrintStream out = System.out;
+        out.println("nodes, links, full mesh links, block messages, block reached, tx messages, tx reached, ms");
+        Logger.Level level = Logger.getLevel();
+        Logger.setLevel(Logger.Level.OFF);
+        for (String size : sizes.split(",")) {
+            int n = Integer.parseInt(size.trim());
+            // ノードのログは捨てる
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    // None
+                }
+            }));
+            String result;
+            try {
+                result = run(n, maxPeers);
+            } finally {
+                System.setOut(out);
+            }
+            out.println(result);
+        }
+        Logger.setLevel(level);
+    }
+
+    private static String run(int n, int maxPeers) {
+        Random random = new Random(n);
+        Node[] nodes = new Node[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new Node("Node" + i, 1);
+            nodes[i].setMaxPeers(maxPeers);
+            if (i > 0) {
+                nodes[i].addNode(nodes[random.nextInt(i)]);
+            }
+        }
+        Inbox.awaitIdle();
+
+        long links = 0;
+        for (Node node : nodes) {
+            links += node.getPeerCount();
+        }
+        links /= 2;
+
+        long start = System.currentTimeMillis();
+        long before = received(nodes);
+        nodes[0].mining();
+        Inbox.awaitIdle();
+        long blockMessages = received(nodes) - before;
+        int blockReached = 0;
+        for (Node node : nodes) {
+            if (node.getHeight() > 0) {
+                blockReached++;
+            }
+        }
+
+        before = received(nodes);
+        nodes[0].send(nodes[n - 1].getPublicKey());
+        Inbox.awaitIdle();
+        long txMessages = received(nodes) - before;
+        int txReached = 0;
+        for (Node node : nodes) {
+            if (node.getMempoolSize() > 0 || node.getHeight() > 1) {
+                txReached++;
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+
+        return String.format("%d, %d, %d, %d, %d, %d, %d, %d", n, links, (long) n * (n - 1) / 2, blockMessages,
+                blockReached, txMessages, txReached, time);
+    }
+
+    private static long received(Node[] nodes) {
+        long sum = 0;
+        for (Node node : nodes) {
+            sum += node.getInbox().getReceived();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,68 @@
+package org.swib.simulator;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * シミュレーションのシナリオ(プロパティファイル)
+ * <ul>
+ * <li>nodes: ノード数
+ * <li>threads: ノードごとの採掘のスレッド数
+ * <li>maxPeers: 自分からつなぐ隣のノードの数
+ * <li>workers: 操作を同時に行うスレッドの数
+ * <li>seed: 乱数の種。同じ種なら同じ順番で操作する
+ * <li>operations: 操作の回数(0なら時間まで続ける)
+ * <li>duration: 操作を続ける時間(秒)。operationsを指定した場合は上限
+ * <li>mine, send, attack: 採掘、送金、攻撃(Mainの3-8の操作)の割合
+ * </ul>
+ */
+public class Scenario {
+    public int nodes = 8;
+    public int threads = 1;
+    public int maxPeers = 8;
+    public int workers = 2;
+    public long seed = 1;
+    public int operations = 0;
+    public long duration = 30;
+    public int mine = 1;
+    public int send = 4;
+    public int attack = 1;
+
+    /**
+     * シナリオを読む。書かれていない項目は初期値のまま
+     *
+     * @param file プロパティファイル
+     * @return シナリオ
+     * @throws IOException 読めない
+     */
+    public static Scenario load(File file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            p.load(in);
+        }
+        Scenario s = new Scenario();
+        s.nodes = Integer.parseInt(p.getProperty("nodes", String.valueOf(s.nodes)));
+        s.threads = Integer.parseInt(p.getProperty("threads", String.valueOf(s.threads)));
+        s.maxPeers = Integer.parseInt(p.getProperty("maxPeers", String.valueOf(s.maxPeers)));
+        s.workers = Integer.parseInt(p.getProperty("workers", String.valueOf(s.workers)));
+        s.seed = Long.parseLong(p.getProperty("seed", String.valueOf(s.seed)));
+        s.operations = Integer.parseInt(p.getProperty("operations", String.valueOf(s.operations)));
+        s.duration = Long.parseLong(p.getProperty("duration", String.valueOf(s.duration)));
+        s.mine = Integer.parseInt(p.getProperty("mine", String.valueOf(s.mine)));
+        s.send = Integer.parseInt(p.getProperty("send", String.valueOf(s.send)));
+        s.attack = Integer.parseInt(p.getProperty("attack", String.valueOf(s.attack)));
+        if (s.nodes < 1 || s.workers < 1 || s.mine + s.send + s.attack <= 0) {
+            throw new IOException("Illegal scenario: " + file);
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("nodes=%d threads=%d maxPeers=%d workers=%d seed=%d operations=%d duration=%ds"
+                + " mine:send:attack=%d:%d:%d", nodes, threads, maxPeers, workers, seed, operations, duration, mine,
+                send, attack);
+    }
+}
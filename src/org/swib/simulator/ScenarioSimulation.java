@@ -0,0 +1,228 @@
+package org.swib.simulator;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.swib.blockchain.Histogram;
+import org.swib.blockchain.Inbox;
+import org.swib.blockchain.Logger;
+import org.swib.blockchain.Node;
+import org.swib.blockchain.NodeMetrics;
+import org.swib.blockchain.SignatureCache;
+import org.swib.blockchain.TransactionOperator;
+
+/**
+ * シナリオに従って操作を繰り返すシミュレーション(コンソールの入力を使わないMain)<br>
+ * 同じプロセスにノードを作り、workers個のスレッドが乱数で選んだノードに採掘、送金、攻撃をさせる。
+ * 操作の順番は乱数の種で決まるので、同じシナリオなら同じ順番で操作する。<br>
+ * ノードのログは捨て、終わったら全ノードの統計(NodeMetrics)をまとめたレポートを出力する
+ * <ul>
+ * <li>引数1: シナリオのファイル(Scenario)
+ * </ul>
+ */
+public class ScenarioSimulation {
+    private static final String[] OPERATIONS = { "mine", "send", "attack" };
+
+    private final Scenario scenario;
+    private final Node[] nodes;
+    private final AtomicLongArray done = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray failed = new AtomicLongArray(OPERATIONS.length);
+
+    /**
+     * コンストラクタ。ノードを作り、各ノードは既にいる適当なノードを入口にしてネットワークに参加する
+     *
+     * @param scenario シナリオ
+     */
+    public ScenarioSimulation(Scenario scenario) {
+        this.scenario = scenario;
+        Random random = new Random(scenario.seed);
+        nodes = new Node[scenario.nodes];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node("Node" + i, scenario.threads);
+            nodes[i].setMaxPeers(scenario.maxPeers);
+            nodes[i].setSeed(random.nextLong());
+            if (i > 0) {
+                nodes[i].addNode(nodes[random.nextInt(i)]);
+            }
+        }
+        Inbox.awaitIdle();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: ScenarioSimulation <scenario file>");
+            return;
+        }
+        Scenario scenario;
+        try {
+            scenario = Scenario.load(new File(args[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        // ノードのログは捨てる
+        PrintStream none = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // None
+            }
+        });
+        Logger.Level level = Logger.getLevel();
+        Logger.setLevel(Logger.Level.OFF);
+        System.setOut(none);
+        System.setErr(none);
+        String report;
+        try {
+            report = new ScenarioSimulation(scenario).run();
+        } finally {
+            Logger.setLevel(level);
+            System.setOut(out);
+            System.setErr(err);
+        }
+        out.print(report);
+    }
+
+    /**
+     * シナリオを実行する
+     *
+     * @return レポート
+     */
+    public String run() {
+        long start = System.nanoTime();
+        long deadline = start + scenario.duration * 1000000000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < scenario.workers; w++) {
+            int worker = w;
+            Thread thread = new Thread(() -> work(worker, deadline), "Worker" + w);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "Interrupted\n";
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Inbox.awaitIdle();
+        return report(elapsed);
+    }
+
+    /**
+     * 1つのスレッドの操作。操作の通し番号のうちworkerの担当分を行う
+     */
+    private void work(int worker, long deadline) {
+        Random random = new Random(scenario.seed * 31 + worker);
+        int total = scenario.mine + scenario.send + scenario.attack;
+        for (int i = worker; scenario.operations <= 0 || i < scenario.operations; i += scenario.workers) {
+            if (System.nanoTime() >= deadline) {
+                return;
+            }
+            Node node = nodes[random.nextInt(nodes.length)];
+            Node target = nodes[random.nextInt(nodes.length)];
+            int r = random.nextInt(total);
+            int op;
+            boolean ok;
+            if (r < scenario.mine) {
+                op = 0;
+                node.mining();
+                ok = true;
+            } else if (r < scenario.mine + scenario.send) {
+                op = 1;
+                ok = node.send(target.getPublicKey());
+            } else {
+                op = 2;
+                int mode = 1 + random.nextInt(6);
+                ok = mode <= 3 ? node.sendWrong(mode, target.getPublicKey()) : node.wrongTranaction(mode - 3);
+            }
+            done.incrementAndGet(op);
+            if (!ok) {
+                failed.incrementAndGet(op);
+            }
+        }
+    }
+
+    private String report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        Histogram syncLatency = new Histogram();
+        Map<String, Long> blocksRejected = new LinkedHashMap<>();
+        Map<String, Long> transactionsRejected = new LinkedHashMap<>();
+        long reorgs = 0;
+        long dropped = 0;
+        long throttled = 0;
+        int maxHeight = 0;
+        for (Node node : nodes) {
+            NodeMetrics m = node.getMetrics();
+            syncLatency.add(m.getSyncLatencyHistogram());
+            reorgs += m.getReorgs();
+            dropped += m.getInboxDropped();
+            throttled += m.getThrottledMessages();
+            sum(blocksRejected, m.getBlocksRejected());
+            sum(transactionsRejected, m.getTransactionsRejected());
+            maxHeight = Math.max(maxHeight, node.getHeight());
+        }
+        int converged = 0;
+        for (Node node : nodes) {
+            if (node.getHeight() == maxHeight) {
+                converged++;
+            }
+        }
+        NodeMetrics first = nodes[0].getMetrics();
+        Histogram blockInterval = first.getBlockIntervalHistogram();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("scenario: ").append(scenario).append('\n');
+        sb.append(String.format("elapsed: %.1f s%n", seconds));
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            sb.append(String.format("%s: %d (failed %d)%n", OPERATIONS[i], done.get(i), failed.get(i)));
+        }
+        sb.append(String.format("height: %d (%d/%d nodes converged), difficulty %d%n", maxHeight, converged,
+                nodes.length, first.getDifficulty()));
+        sb.append(String.format("transactions: %d confirmed, %.2f tx/s%n", first.getTransactionsConfirmed(),
+                first.getTransactionsConfirmed() / seconds));
+        sb.append(String.format("block interval: mean %.1f ms, p50 %.1f ms, p99 %.1f ms%n",
+                blockInterval.getMean() / 1000, blockInterval.getPercentile(50) / 1000.0,
+                blockInterval.getPercentile(99) / 1000.0));
+        sb.append(String.format("sync latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms (%d syncs)%n",
+                syncLatency.getPercentile(50) / 1000.0, syncLatency.getPercentile(90) / 1000.0,
+                syncLatency.getPercentile(99) / 1000.0, syncLatency.getMax() / 1000.0, syncLatency.getCount()));
+        sb.append("forks: ").append(reorgs).append('\n');
+        sb.append("blocks rejected: ").append(nonZero(blocksRejected)).append('\n');
+        sb.append("transactions rejected: ").append(nonZero(transactionsRejected)).append('\n');
+        sb.append("inbox dropped: ").append(dropped).append('\n');
+        sb.append("throttled: ").append(throttled).append('\n');
+        SignatureCache cache = TransactionOperator.getSignatureCache();
+        long lookups = cache.getHits() + cache.getMisses();
+        sb.append(String.format("signature cache: %d hits, %d misses (%.1f%% hit), %d entries%n", cache.getHits(),
+                cache.getMisses(), lookups == 0 ? 0 : 100.0 * cache.getHits() / lookups, cache.size()));
+        return sb.toString();
+    }
+
+    private static void sum(Map<String, Long> total, Map<String, Long> counts) {
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            total.merge(e.getKey(), e.getValue(), Long::sum);
+        }
+    }
+
+    private static Map<String, Long> nonZero(Map<String, Long> counts) {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            if (e.getValue() > 0) {
+                ret.put(e.getKey(), e.getValue());
+            }
+        }
+        return ret;
+    }
+}